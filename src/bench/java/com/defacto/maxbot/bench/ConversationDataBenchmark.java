@@ -0,0 +1,43 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.ConversationData;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversationDataBenchmark {
+  private ObjectMapper mapper;
+  private Map<String, String> legacy;
+  private ConversationData data;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mapper = new ObjectMapper();
+    legacy = new HashMap<>(Map.of(
+        "replan_type", "жилое",
+        "replan_city", "Михайловск",
+        "last_menu_at", "1760000000000"));
+    data = new ConversationData(legacy);
+  }
+
+  @Benchmark
+  public Map<String, String> binaryRoundTrip() {
+    return ConversationData.decode(ConversationData.encode(data));
+  }
+
+  @Benchmark
+  public Map<String, String> legacyJsonRoundTrip() throws Exception {
+    String raw = mapper.writeValueAsString(legacy);
+    Map<String, String> map = mapper.readValue(raw, Map.class);
+    return new HashMap<>(map);
+  }
+}
@@ -0,0 +1,151 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.Conversation;
+import com.defacto.maxbot.ConversationStore;
+import com.defacto.maxbot.GroupCommitWriter;
+import com.defacto.maxbot.MappedConversationStore;
+import com.defacto.maxbot.SqliteConversationStore;
+import com.defacto.maxbot.SqliteDatabase;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversationStoreBenchmark {
+  private static final int USERS = 10_000;
+
+  private File dir;
+  private SqliteDatabase db;
+  private GroupCommitWriter writer;
+  private ConversationStore store;
+  private ConversationStore mapped;
+  private String legacyUrl;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("maxbot-bench").toFile();
+    ObjectMapper mapper = new ObjectMapper();
+    db = new SqliteDatabase(new File(dir, "pooled.db").getPath(), 4);
+    writer = new GroupCommitWriter(db, 0, 256);
+    store = new SqliteConversationStore(db, writer, mapper);
+    mapped = new MappedConversationStore(new File(dir, "conversations.map").getPath(), 2 * USERS, 512);
+
+    File legacyFile = new File(dir, "legacy.db");
+    legacyUrl = "jdbc:sqlite:" + legacyFile.getPath();
+    SqliteDatabase legacyInit = new SqliteDatabase(legacyFile.getPath(), 1);
+    GroupCommitWriter legacyWriter = new GroupCommitWriter(legacyInit, 0, 1);
+    new SqliteConversationStore(legacyInit, legacyWriter, mapper);
+    legacyWriter.close();
+    legacyInit.close();
+    try (Connection conn = DriverManager.getConnection(legacyUrl)) {
+      conn.createStatement().execute("PRAGMA journal_mode=DELETE");
+    }
+
+    for (long id = 1; id <= USERS; id++) {
+      store.getConversation(id);
+      mapped.getConversation(id);
+      legacyUpsert(id, "START");
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mapped.close();
+    writer.close();
+    db.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Conversation pooledRead() {
+    return store.getConversation(randomUser());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Conversation pooledReadWrite() {
+    Conversation c = store.getConversation(randomUser());
+    c.state = "REPLAN_1";
+    store.upsertConversation(c);
+    return c;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Conversation mappedRead() {
+    return mapped.getConversation(randomUser());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Conversation mappedReadWrite() {
+    Conversation c = mapped.getConversation(randomUser());
+    c.state = "REPLAN_1";
+    mapped.upsertConversation(c);
+    return c;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String legacyRead() throws SQLException {
+    return legacySelect(randomUser());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String legacyReadWrite() throws SQLException {
+    long id = randomUser();
+    String state = legacySelect(id);
+    legacyUpsert(id, "REPLAN_1");
+    return state;
+  }
+
+  private long randomUser() {
+    return ThreadLocalRandom.current().nextLong(1, USERS + 1);
+  }
+
+  private String legacySelect(long userId) throws SQLException {
+    try (Connection conn = DriverManager.getConnection(legacyUrl);
+         PreparedStatement ps = conn.prepareStatement(
+             "SELECT state, topic, data, phone, time_pref FROM conversations WHERE user_id = ?")) {
+      ps.setLong(1, userId);
+      try (ResultSet rs = ps.executeQuery()) {
+        return rs.next() ? rs.getString("state") : null;
+      }
+    }
+  }
+
+  private void legacyUpsert(long userId, String state) throws SQLException {
+    try (Connection conn = DriverManager.getConnection(legacyUrl);
+         PreparedStatement ps = conn.prepareStatement(
+             "INSERT INTO conversations(user_id, state, topic, data, phone, time_pref, updated_at) " +
+                 "VALUES(?, ?, '', '{}', '', '', ?) " +
+                 "ON CONFLICT(user_id) DO UPDATE SET state=excluded.state, updated_at=excluded.updated_at")) {
+      ps.setLong(1, userId);
+      ps.setString(2, state);
+      ps.setLong(3, System.currentTimeMillis());
+      ps.executeUpdate();
+    }
+  }
+}
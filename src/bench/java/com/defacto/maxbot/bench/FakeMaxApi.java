@@ -0,0 +1,354 @@
+package com.defacto.maxbot.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FakeMaxApi implements AutoCloseable {
+  private static final String SECRET_HEADER = "X-Max-Bot-Api-Secret";
+  private static final int MAX_POLL_TIMEOUT_SECONDS = 90;
+  private static final long WEBHOOK_RETRY_MS = 500;
+
+  public record Options(long latencyMs, long jitterMs, double errorRate, double rateLimitRate,
+                        int retryAfterSeconds) {
+  }
+
+  private record Subscription(String url, String secret) {
+  }
+
+  @FunctionalInterface
+  public interface MessageListener {
+    void onMessage(long userId, byte[] body);
+  }
+
+  private final Options options;
+  private final ObjectMapper mapper;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ScheduledExecutorService retries;
+  private final HttpClient webhookClient;
+  private final List<byte[]> log = new ArrayList<>();
+  private long logBase;
+  private volatile MessageListener listener = (userId, body) -> {
+  };
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong pushed = new AtomicLong();
+  private final AtomicLong pushRetries = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong answers = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private final AtomicLong injectedRateLimits = new AtomicLong();
+
+  public FakeMaxApi(int port, Options options, ObjectMapper mapper) throws IOException {
+    this.options = options;
+    this.mapper = mapper;
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "fake-api-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "fake-api-webhook-retry");
+      t.setDaemon(true);
+      return t;
+    });
+    this.webhookClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).executor(executor).build();
+    this.server = HttpServer.create(new InetSocketAddress(port), 1024);
+    server.createContext("/updates", this::handleUpdates);
+    server.createContext("/messages", this::handleMessages);
+    server.createContext("/answers", this::handleAnswers);
+    server.createContext("/subscriptions", this::handleSubscriptions);
+    server.setExecutor(executor);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  public void setListener(MessageListener listener) {
+    this.listener = listener;
+  }
+
+  public boolean connected() {
+    return polls.get() > 0 || webhookMode();
+  }
+
+  public boolean webhookMode() {
+    return !subscriptions.isEmpty();
+  }
+
+  public void deliver(byte[] update) {
+    if (webhookMode()) {
+      push(update);
+      return;
+    }
+    synchronized (log) {
+      log.add(update);
+      log.notifyAll();
+    }
+  }
+
+  public String describe() {
+    return "polls=" + polls.get() +
+        " delivered=" + delivered.get() +
+        " pushed=" + pushed.get() +
+        " push_retries=" + pushRetries.get() +
+        " messages=" + messages.get() +
+        " answers=" + answers.get() +
+        " injected_errors=" + injectedErrors.get() +
+        " injected_429=" + injectedRateLimits.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    retries.shutdownNow();
+    executor.shutdownNow();
+    synchronized (log) {
+      log.notifyAll();
+    }
+  }
+
+  private void handleUpdates(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      polls.incrementAndGet();
+      Map<String, String> query = query(exchange.getRequestURI());
+      int timeout = Math.min(MAX_POLL_TIMEOUT_SECONDS, parseInt(query.get("timeout"), 30));
+      int limit = Math.max(1, parseInt(query.get("limit"), 100));
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+      List<byte[]> batch = new ArrayList<>();
+      long next;
+      synchronized (log) {
+        long start = Math.max(logBase, parseLong(query.get("marker"), logBase));
+        if (start > logBase) {
+          int acked = (int) Math.min(start - logBase, log.size());
+          log.subList(0, acked).clear();
+          logBase += acked;
+        }
+        start = Math.min(start, logBase + log.size());
+        while (logBase + log.size() <= start) {
+          long waitMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (waitMs <= 0) {
+            break;
+          }
+          try {
+            log.wait(waitMs);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        long end = Math.min(logBase + log.size(), start + limit);
+        for (long i = start; i < end; i++) {
+          batch.add(log.get((int) (i - logBase)));
+        }
+        next = end;
+      }
+      delivered.addAndGet(batch.size());
+      StringBuilder sb = new StringBuilder("{\"updates\":[");
+      for (int i = 0; i < batch.size(); i++) {
+        if (i > 0) sb.append(',');
+        sb.append(new String(batch.get(i), StandardCharsets.UTF_8));
+      }
+      sb.append("],\"marker\":").append(next).append('}');
+      respond(exchange, 200, sb.toString());
+    }
+  }
+
+  private void handleMessages(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      byte[] body = readBody(exchange);
+      if (injectFailure(exchange)) {
+        return;
+      }
+      long userId = parseLong(query(exchange.getRequestURI()).get("user_id"), 0);
+      messages.incrementAndGet();
+      listener.onMessage(userId, body);
+      respond(exchange, 200, "{\"message\":{\"body\":{\"mid\":\"mid.fake." + messages.get() + "\"}}}");
+    }
+  }
+
+  private void handleAnswers(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      readBody(exchange);
+      if (injectFailure(exchange)) {
+        return;
+      }
+      answers.incrementAndGet();
+      respond(exchange, 200, "{\"success\":true}");
+    }
+  }
+
+  private void handleSubscriptions(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      byte[] body = readBody(exchange);
+      if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        JsonNode node = mapper.readTree(body);
+        Subscription subscription = new Subscription(node.path("url").asText(), node.path("secret").asText(null));
+        subscriptions.removeIf(s -> s.url().equals(subscription.url()));
+        subscriptions.add(subscription);
+        System.out.println("[INFO] Fake API: webhook subscribed at " + subscription.url() +
+            " (" + subscriptions.size() + " subscriber(s))");
+        drainToWebhook();
+      } else if ("DELETE".equalsIgnoreCase(exchange.getRequestMethod())) {
+        String url = query(exchange.getRequestURI()).get("url");
+        if (url == null) {
+          subscriptions.clear();
+        } else {
+          subscriptions.removeIf(s -> s.url().equals(url));
+        }
+      }
+      respond(exchange, 200, "{\"success\":true}");
+    }
+  }
+
+  private void drainToWebhook() {
+    List<byte[]> pending;
+    synchronized (log) {
+      pending = new ArrayList<>(log);
+      logBase += log.size();
+      log.clear();
+    }
+    for (byte[] update : pending) {
+      push(update);
+    }
+  }
+
+  private void push(byte[] update) {
+    Subscription[] targets = subscriptions.toArray(new Subscription[0]);
+    if (targets.length == 0) {
+      synchronized (log) {
+        log.add(update);
+        log.notifyAll();
+      }
+      return;
+    }
+    Subscription target = targets[ThreadLocalRandom.current().nextInt(targets.length)];
+    String secret = target.secret();
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(target.url()))
+        .timeout(Duration.ofSeconds(10))
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofByteArray(update));
+    if (secret != null && !secret.isBlank()) {
+      request.header(SECRET_HEADER, secret);
+    }
+    webhookClient.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding()).whenComplete((resp, e) -> {
+      if (e == null && resp.statusCode() == 200) {
+        pushed.incrementAndGet();
+        return;
+      }
+      pushRetries.incrementAndGet();
+      if (!retries.isShutdown()) {
+        retries.schedule(() -> push(update), WEBHOOK_RETRY_MS, TimeUnit.MILLISECONDS);
+      }
+    });
+  }
+
+  private boolean injectFailure(HttpExchange exchange) throws IOException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long delay = options.latencyMs() + (options.jitterMs() > 0 ? random.nextLong(options.jitterMs() + 1) : 0);
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    double roll = random.nextDouble();
+    if (roll < options.rateLimitRate()) {
+      injectedRateLimits.incrementAndGet();
+      exchange.getResponseHeaders().set("Retry-After", String.valueOf(options.retryAfterSeconds()));
+      respond(exchange, 429, "{\"code\":\"too.many.requests\"}");
+      return true;
+    }
+    if (roll < options.rateLimitRate() + options.errorRate()) {
+      injectedErrors.incrementAndGet();
+      respond(exchange, 500, "{\"code\":\"internal\"}");
+      return true;
+    }
+    return false;
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      return in.readAllBytes();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  private static Map<String, String> query(URI uri) {
+    Map<String, String> params = new HashMap<>();
+    String raw = uri.getRawQuery();
+    if (raw == null || raw.isEmpty()) {
+      return params;
+    }
+    for (String pair : raw.split("&")) {
+      int eq = pair.indexOf('=');
+      String key = eq < 0 ? pair : pair.substring(0, eq);
+      String value = eq < 0 ? "" : pair.substring(eq + 1);
+      params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return params;
+  }
+
+  private static int parseInt(String raw, int def) {
+    try {
+      return raw == null ? def : Integer.parseInt(raw);
+    } catch (NumberFormatException e) {
+      return def;
+    }
+  }
+
+  private static long parseLong(String raw, long def) {
+    try {
+      return raw == null ? def : Long.parseLong(raw);
+    } catch (NumberFormatException e) {
+      return def;
+    }
+  }
+}
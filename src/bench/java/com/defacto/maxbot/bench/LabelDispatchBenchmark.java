@@ -0,0 +1,105 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.Config;
+import com.defacto.maxbot.ConversationFlow;
+import com.defacto.maxbot.FlowDefinition;
+import com.defacto.maxbot.Labels;
+import com.defacto.maxbot.Screens;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LabelDispatchBenchmark {
+  private static final String[] INPUTS = {
+      "🏗️ Перепланировка",
+      "  💰 Снижение кадастровой стоимости ",
+      "👨‍⚖️ Связаться с юристом",
+      "🏢 Споры в строительстве (для бизнеса)",
+      "меню",
+      "Михайловск",
+      "+7 900 123-45-67",
+      "не знаю, что выбрать"
+  };
+
+  private ConversationFlow flow;
+  private ConversationFlow.Step start;
+  private List<String> startLabels;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    Config config = Config.from(Map.of("MAX_ACCESS_TOKEN", "bench", "OPERATOR_USER_ID", "1")::get);
+    FlowDefinition definition = FlowDefinition.load(mapper, "");
+    flow = ConversationFlow.compile(definition, new Screens(mapper, config, definition));
+    start = flow.start();
+    startLabels = new ArrayList<>();
+    for (FlowDefinition.OptionDef option : definition.states().get(definition.start()).options()) {
+      startLabels.add(option.label());
+    }
+  }
+
+  @Benchmark
+  public String normalize() {
+    return Labels.normalize(nextInput());
+  }
+
+  @Benchmark
+  public String legacyNormalize() {
+    return legacyNormalize(nextInput());
+  }
+
+  @Benchmark
+  public Object dispatch() {
+    String normalized = Labels.normalize(nextInput());
+    if (flow.isMenuCommand(normalized)) {
+      return normalized;
+    }
+    return start.option(normalized);
+  }
+
+  @Benchmark
+  public Object legacyDispatch() {
+    String normalized = legacyNormalize(nextInput());
+    if (legacyEqualsAny(normalized, "/start", "меню", "главное меню", "в меню")) {
+      return normalized;
+    }
+    for (String label : startLabels) {
+      if (legacyEqualsAny(normalized, label)) {
+        return label;
+      }
+    }
+    return null;
+  }
+
+  private String nextInput() {
+    String input = INPUTS[next];
+    next = (next + 1) % INPUTS.length;
+    return input;
+  }
+
+  private static boolean legacyEqualsAny(String normalized, String... options) {
+    for (String o : options) {
+      if (legacyNormalize(o).equals(normalized)) return true;
+    }
+    return false;
+  }
+
+  private static String legacyNormalize(String s) {
+    String t = s == null ? "" : s.trim().toLowerCase();
+    t = t.replace("✅", "");
+    t = t.replaceAll("[\\p{So}\\uFE0F\\u200D]", "");
+    t = t.replaceAll("\\s+", " ").trim();
+    return t;
+  }
+}
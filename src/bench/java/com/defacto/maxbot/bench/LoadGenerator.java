@@ -0,0 +1,350 @@
+package com.defacto.maxbot.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadGenerator {
+  private static final long USER_ID_BASE = 1_000_000;
+
+  private record Step(String text, boolean button) {
+    static Step button(String text) {
+      return new Step(text, true);
+    }
+
+    static Step text(String text) {
+      return new Step(text, false);
+    }
+  }
+
+  private static final Step[][] SCRIPTS = {
+      {
+          Step.text("меню"),
+          Step.button("🏗️ Перепланировка"),
+          Step.button("🏠 Жилое"),
+          Step.button("🌍 Другой город"),
+          Step.text("Михайловск"),
+          Step.button("📞 Оставить номер"),
+          Step.text("+7 900 123-45-67"),
+          Step.button("🌅 Утром (09:00–12:00)")
+      },
+      {
+          Step.text("меню"),
+          Step.button("📐 Кадастровые работы"),
+          Step.button("📏 Межевание земли"),
+          Step.button("📞 Оставить номер"),
+          Step.text("89001234567"),
+          Step.button("✅ Не важно")
+      },
+      {
+          Step.text("меню"),
+          Step.button("👨‍⚖️ Связаться с юристом"),
+          Step.text("+79001112233"),
+          Step.button("🌞 Днём (12:00–15:00)")
+      }
+  };
+
+  private final FakeMaxApi api;
+  private final ObjectMapper mapper;
+  private final ScheduledExecutorService scheduler;
+  private final VirtualUser[] users;
+  private final long thinkMs;
+  private final long timeoutMs;
+  private final double callbackRate;
+  private final Latencies latencies = new Latencies();
+  private final AtomicLong ids = new AtomicLong();
+  private final AtomicLong steps = new AtomicLong();
+  private final AtomicLong scripts = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong stray = new AtomicLong();
+  private final AtomicLong operatorMessages = new AtomicLong();
+  private volatile boolean running = true;
+
+  LoadGenerator(FakeMaxApi api, ObjectMapper mapper, int userCount, long thinkMs, long timeoutMs,
+                double callbackRate, long seed) {
+    this.api = api;
+    this.mapper = mapper;
+    this.thinkMs = thinkMs;
+    this.timeoutMs = timeoutMs;
+    this.callbackRate = callbackRate;
+    this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+      Thread t = new Thread(r, "load-generator");
+      t.setDaemon(true);
+      return t;
+    });
+    this.users = new VirtualUser[userCount];
+    Random random = new Random(seed);
+    for (int i = 0; i < userCount; i++) {
+      users[i] = new VirtualUser(USER_ID_BASE + i, new Random(random.nextLong()));
+    }
+    api.setListener(this::onMessage);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> opts = parseArgs(args);
+    int port = Integer.parseInt(opts.getOrDefault("port", "9000"));
+    int userCount = Integer.parseInt(opts.getOrDefault("users", "100"));
+    long durationSeconds = Long.parseLong(opts.getOrDefault("duration", "60"));
+    long rampSeconds = Long.parseLong(opts.getOrDefault("ramp", "5"));
+    long thinkMs = Long.parseLong(opts.getOrDefault("think-ms", "0"));
+    long timeoutMs = Long.parseLong(opts.getOrDefault("timeout-ms", "10000"));
+    long waitSeconds = Long.parseLong(opts.getOrDefault("wait", "120"));
+    double callbackRate = Double.parseDouble(opts.getOrDefault("callback-rate", "0.3"));
+    long seed = Long.parseLong(opts.getOrDefault("seed", "42"));
+    FakeMaxApi.Options options = new FakeMaxApi.Options(
+        Long.parseLong(opts.getOrDefault("latency-ms", "0")),
+        Long.parseLong(opts.getOrDefault("jitter-ms", "0")),
+        Double.parseDouble(opts.getOrDefault("error-rate", "0")),
+        Double.parseDouble(opts.getOrDefault("rate-limit-rate", "0")),
+        Integer.parseInt(opts.getOrDefault("retry-after", "1")));
+
+    ObjectMapper mapper = new ObjectMapper();
+    FakeMaxApi api = new FakeMaxApi(port, options, mapper);
+    api.start();
+    System.out.println("[INFO] Fake Max API listening on http://localhost:" + api.port() + " " + options);
+    if (opts.containsKey("serve-only")) {
+      Thread.currentThread().join();
+    }
+
+    long waitDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+    while (!api.connected()) {
+      if (System.nanoTime() - waitDeadline > 0) {
+        System.err.println("[WARN] No bot connected within " + waitSeconds + "s");
+        api.close();
+        System.exit(1);
+      }
+      Thread.sleep(100);
+    }
+
+    LoadGenerator load = new LoadGenerator(api, mapper, userCount, thinkMs, timeoutMs, callbackRate, seed);
+    String mode = api.webhookMode() ? "webhook" : "polling";
+    System.out.println("[INFO] Bot connected via " + mode + ", starting " + userCount + " user(s) for " +
+        durationSeconds + "s");
+    long started = System.nanoTime();
+    load.start(rampSeconds);
+    long reportEvery = Math.max(1, Math.min(5, durationSeconds));
+    long previousSteps = 0;
+    for (long elapsed = reportEvery; elapsed <= durationSeconds; elapsed += reportEvery) {
+      Thread.sleep(TimeUnit.SECONDS.toMillis(reportEvery));
+      long done = load.steps.get();
+      long[] window = load.latencies.drainWindow();
+      System.out.println("[INFO] t=" + elapsed + "s steps/s=" + (done - previousSteps) / reportEvery +
+          " p50_ms=" + millis(percentile(window, 0.50)) +
+          " p99_ms=" + millis(percentile(window, 0.99)) +
+          " timeouts=" + load.timeouts.get());
+      previousSteps = done;
+    }
+    load.stop();
+    long measuredNanos = System.nanoTime() - started;
+    Thread.sleep(Math.min(timeoutMs, 2000));
+    load.report(mode, measuredNanos);
+    api.close();
+    System.exit(0);
+  }
+
+  void start(long rampSeconds) {
+    long spacingNanos = users.length == 0 ? 0 : TimeUnit.SECONDS.toNanos(rampSeconds) / users.length;
+    for (int i = 0; i < users.length; i++) {
+      VirtualUser user = users[i];
+      scheduler.schedule(user::next, spacingNanos * i, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  void stop() {
+    running = false;
+    scheduler.shutdownNow();
+  }
+
+  void report(String mode, long elapsedNanos) {
+    long[] all = latencies.all();
+    double seconds = elapsedNanos / 1e9;
+    System.out.println("[INFO] Load test finished: mode=" + mode +
+        " users=" + users.length +
+        " seconds=" + Math.round(seconds) +
+        " steps=" + steps.get() +
+        " steps_per_second=" + Math.round(steps.get() / seconds) +
+        " scripts_completed=" + scripts.get() +
+        " operator_messages=" + operatorMessages.get() +
+        " timeouts=" + timeouts.get() +
+        " stray_replies=" + stray.get());
+    System.out.println("[INFO] End-to-end latency ms: p50=" + millis(percentile(all, 0.50)) +
+        " p90=" + millis(percentile(all, 0.90)) +
+        " p99=" + millis(percentile(all, 0.99)) +
+        " max=" + millis(all.length == 0 ? 0 : all[all.length - 1]));
+    System.out.println("[INFO] Fake API " + api.describe());
+  }
+
+  private void onMessage(long userId, byte[] body) {
+    int index = (int) (userId - USER_ID_BASE);
+    if (index < 0 || index >= users.length) {
+      operatorMessages.incrementAndGet();
+      return;
+    }
+    users[index].onReply();
+  }
+
+  private byte[] encode(long userId, Step step, boolean asCallback) {
+    long now = System.currentTimeMillis();
+    long n = ids.incrementAndGet();
+    ObjectNode update = mapper.createObjectNode();
+    ObjectNode user = mapper.createObjectNode()
+        .put("user_id", userId)
+        .put("name", "Load " + userId)
+        .put("is_bot", false);
+    update.put("timestamp", now);
+    if (asCallback) {
+      update.put("update_type", "message_callback");
+      update.putObject("callback")
+          .put("timestamp", now)
+          .put("callback_id", "cb.load." + n)
+          .put("payload", step.text())
+          .set("user", user);
+    } else {
+      update.put("update_type", "message_created");
+      ObjectNode message = update.putObject("message");
+      message.set("sender", user);
+      message.putObject("recipient").put("chat_id", userId).put("chat_type", "dialog");
+      message.put("timestamp", now);
+      message.putObject("body").put("mid", "mid.load." + n).put("seq", n).put("text", step.text());
+    }
+    update.put("user_locale", "ru");
+    return update.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private final class VirtualUser {
+    final long userId;
+    final Random random;
+    Step[] script;
+    int step;
+    long sentAt;
+    boolean awaiting;
+    ScheduledFuture<?> timeout;
+
+    VirtualUser(long userId, Random random) {
+      this.userId = userId;
+      this.random = random;
+      this.script = SCRIPTS[random.nextInt(SCRIPTS.length)];
+    }
+
+    synchronized void next() {
+      if (!running) {
+        return;
+      }
+      Step current = script[step];
+      boolean asCallback = current.button() && random.nextDouble() < callbackRate;
+      byte[] update = encode(userId, current, asCallback);
+      awaiting = true;
+      sentAt = System.nanoTime();
+      try {
+        timeout = scheduler.schedule(this::onTimeout, timeoutMs, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        return;
+      }
+      api.deliver(update);
+    }
+
+    synchronized void onReply() {
+      if (!awaiting) {
+        stray.incrementAndGet();
+        return;
+      }
+      awaiting = false;
+      timeout.cancel(false);
+      latencies.record(System.nanoTime() - sentAt);
+      steps.incrementAndGet();
+      step++;
+      if (step == script.length) {
+        scripts.incrementAndGet();
+        script = SCRIPTS[random.nextInt(SCRIPTS.length)];
+        step = 0;
+      }
+      schedule(thinkMs);
+    }
+
+    synchronized void onTimeout() {
+      if (!awaiting) {
+        return;
+      }
+      awaiting = false;
+      timeouts.incrementAndGet();
+      step = 0;
+      schedule(thinkMs);
+    }
+
+    private void schedule(long delayMs) {
+      if (!running) {
+        return;
+      }
+      try {
+        scheduler.schedule(this::next, delayMs, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException ignored) {
+      }
+    }
+  }
+
+  private static final class Latencies {
+    private long[] all = new long[1024];
+    private int allSize;
+    private long[] window = new long[1024];
+    private int windowSize;
+
+    synchronized void record(long nanos) {
+      if (allSize == all.length) all = Arrays.copyOf(all, all.length * 2);
+      if (windowSize == window.length) window = Arrays.copyOf(window, window.length * 2);
+      all[allSize++] = nanos;
+      window[windowSize++] = nanos;
+    }
+
+    synchronized long[] drainWindow() {
+      long[] sorted = Arrays.copyOf(window, windowSize);
+      windowSize = 0;
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    synchronized long[] all() {
+      long[] sorted = Arrays.copyOf(all, allSize);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+  }
+
+  private static Map<String, String> parseArgs(String[] args) {
+    Map<String, String> opts = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + arg);
+      }
+      int eq = arg.indexOf('=');
+      if (eq < 0) {
+        opts.put(arg.substring(2), "true");
+      } else {
+        opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+    }
+    return opts;
+  }
+}
@@ -0,0 +1,50 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.Button;
+import com.defacto.maxbot.MessageBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageEncodingBenchmark {
+  private static final String TEXT = "Здравствуйте! 👋\nВас приветствует юридический центр «Де‑Факто».\n" +
+      "Выберите интересующий вас вопрос:";
+  private static final List<List<Button>> BUTTONS = List.of(
+      List.of(Button.message("💰 Снижение кадастровой стоимости")),
+      List.of(Button.message("🏗️ Перепланировка")),
+      List.of(Button.message("📐 Кадастровые работы")),
+      List.of(Button.message("➕ Прирезка земли")),
+      List.of(Button.message("🏠 Оформить дом / реконструкцию")),
+      List.of(Button.message("🧭 Земельные споры")),
+      List.of(Button.message("🏢 Споры в строительстве (для бизнеса)")),
+      List.of(Button.message("👨‍⚖️ Связаться с юристом"))
+  );
+
+  private ObjectMapper mapper;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mapper = new ObjectMapper();
+  }
+
+  @Benchmark
+  public Map<String, Object> build() {
+    return MessageBuilder.textWithKeyboard(TEXT, BUTTONS, null);
+  }
+
+  @Benchmark
+  public byte[] buildAndSerialize() throws Exception {
+    return mapper.writeValueAsString(MessageBuilder.textWithKeyboard(TEXT, BUTTONS, null))
+        .getBytes(StandardCharsets.UTF_8);
+  }
+}
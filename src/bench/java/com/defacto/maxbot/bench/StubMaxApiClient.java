@@ -0,0 +1,36 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.MaxApiClient;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StubMaxApiClient extends MaxApiClient {
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong answers = new AtomicLong();
+
+  public StubMaxApiClient(ObjectMapper mapper) {
+    super("http://127.0.0.1:9", "bench", mapper);
+  }
+
+  @Override
+  public CompletableFuture<Void> sendMessageAsync(long userId, byte[] jsonBody) {
+    messages.incrementAndGet();
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> answerCallbackAsync(String callbackId, String notification) {
+    answers.incrementAndGet();
+    return CompletableFuture.completedFuture(null);
+  }
+
+  public long messages() {
+    return messages.get();
+  }
+
+  public long answers() {
+    return answers.get();
+  }
+}
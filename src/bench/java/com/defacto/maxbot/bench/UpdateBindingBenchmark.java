@@ -0,0 +1,79 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.Update;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateBindingBenchmark {
+  private static final String MESSAGE_CREATED = "{\"update_type\":\"message_created\",\"timestamp\":1718000000000," +
+      "\"message\":{\"sender\":{\"user_id\":123456789,\"name\":\"Иван\",\"username\":null,\"is_bot\":false," +
+      "\"last_activity_time\":1718000000000},\"recipient\":{\"chat_id\":987654321,\"chat_type\":\"dialog\"," +
+      "\"user_id\":555},\"timestamp\":1718000000000,\"body\":{\"mid\":\"mid.0000000000abcdef\",\"seq\":112233," +
+      "\"text\":\"Перепланировка\",\"attachments\":[]},\"stat\":{\"views\":1},\"url\":\"https://max.ru/c/1\"}," +
+      "\"user_locale\":\"ru\"}";
+  private static final String MESSAGE_CALLBACK = "{\"update_type\":\"message_callback\",\"timestamp\":1718000000000," +
+      "\"callback\":{\"timestamp\":1718000000000,\"callback_id\":\"cb.000000000000abcd\",\"payload\":\"menu\"," +
+      "\"user\":{\"user_id\":123456789,\"name\":\"Иван\",\"is_bot\":false}},\"message\":{\"sender\":{\"user_id\":555," +
+      "\"name\":\"bot\",\"is_bot\":true},\"recipient\":{\"chat_id\":987654321,\"chat_type\":\"dialog\"}," +
+      "\"timestamp\":1718000000000,\"body\":{\"mid\":\"mid.0000000000abcdee\",\"seq\":112232,\"text\":\"Меню\"," +
+      "\"attachments\":[{\"type\":\"inline_keyboard\",\"payload\":{\"buttons\":[[{\"type\":\"message\"," +
+      "\"text\":\"Перепланировка\"}],[{\"type\":\"message\",\"text\":\"Кадастровые работы\"}]]}}]}}," +
+      "\"user_locale\":\"ru\"}";
+
+  @Param({"message_created", "message_callback"})
+  public String kind;
+
+  private byte[] payload;
+  private ObjectMapper mapper;
+  private ObjectReader updateReader;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mapper = new ObjectMapper();
+    updateReader = mapper.readerFor(Update.class);
+    String json = "message_created".equals(kind) ? MESSAGE_CREATED : MESSAGE_CALLBACK;
+    payload = json.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public void tree(Blackhole bh) throws Exception {
+    JsonNode update = mapper.readTree(payload);
+    String type = update.path("update_type").asText("");
+    if ("message_created".equals(type)) {
+      JsonNode message = update.get("message");
+      bh.consume(message.path("sender").path("user_id").asLong(0));
+      bh.consume(message.path("body").path("text").asText(""));
+    } else if ("message_callback".equals(type)) {
+      JsonNode callback = update.get("callback");
+      long userId = callback.path("user_id").asLong(0);
+      if (userId == 0) {
+        userId = callback.path("user").path("user_id").asLong(0);
+      }
+      bh.consume(userId);
+      bh.consume(callback.path("payload").asText(""));
+    }
+  }
+
+  @Benchmark
+  public void typed(Blackhole bh) throws Exception {
+    Update update = updateReader.readValue(payload);
+    bh.consume(update.userId());
+    if (update instanceof Update.MessageCreated created) {
+      bh.consume(created.message().text());
+    } else if (update instanceof Update.MessageCallback callback) {
+      bh.consume(callback.payload());
+    }
+  }
+}
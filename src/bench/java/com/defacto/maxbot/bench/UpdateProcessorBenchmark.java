@@ -0,0 +1,125 @@
+package com.defacto.maxbot.bench;
+
+import com.defacto.maxbot.Config;
+import com.defacto.maxbot.ConversationCache;
+import com.defacto.maxbot.ConversationFlow;
+import com.defacto.maxbot.ConversationStore;
+import com.defacto.maxbot.DedupFilter;
+import com.defacto.maxbot.FlowDefinition;
+import com.defacto.maxbot.GroupCommitWriter;
+import com.defacto.maxbot.LeadStore;
+import com.defacto.maxbot.Metrics;
+import com.defacto.maxbot.OutboundQueue;
+import com.defacto.maxbot.OutboxDispatcher;
+import com.defacto.maxbot.Screens;
+import com.defacto.maxbot.SqliteDatabase;
+import com.defacto.maxbot.Update;
+import com.defacto.maxbot.UpdateProcessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateProcessorBenchmark {
+  private static final int USERS = 1_000;
+  private static final long OPERATOR_ID = 1;
+  private static final String[] SCRIPT = {
+      "🏗️ Перепланировка",
+      "🏠 Жилое",
+      "🌍 Другой город",
+      "Михайловск",
+      "📞 Оставить номер",
+      "+7 900 123-45-67",
+      "🌅 Утром (09:00–12:00)",
+      "меню"
+  };
+
+  @Param({"write-through", "write-behind"})
+  public String cacheMode;
+
+  @Param({"sqlite", "mmap"})
+  public String storeBackend;
+
+  private PrintStream stdout;
+  private File dir;
+  private SqliteDatabase db;
+  private GroupCommitWriter writer;
+  private ConversationStore store;
+  private ConversationCache cache;
+  private OutboundQueue outbound;
+  private OutboxDispatcher outbox;
+  private UpdateProcessor processor;
+  private final int[] steps = new int[USERS];
+  private int nextUser;
+  private long nextMid;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    stdout = System.out;
+    System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    dir = Files.createTempDirectory("maxbot-bench").toFile();
+    ObjectMapper mapper = new ObjectMapper();
+    Config config = Config.from(Map.of(
+        "MAX_ACCESS_TOKEN", "bench",
+        "OPERATOR_USER_ID", String.valueOf(OPERATOR_ID),
+        "OPERATOR_CHAT_URL", "https://max.ru/operator",
+        "CACHE_MODE", cacheMode,
+        "STORE_BACKEND", storeBackend,
+        "STORE_MMAP_PATH", new File(dir, "conversations.map").getPath())::get);
+    db = new SqliteDatabase(new File(dir, "processor.db").getPath(), 4);
+    writer = new GroupCommitWriter(db, 0, config.dbCommitMaxRows);
+    store = ConversationStore.create(config, db, writer, mapper, new Metrics());
+    cache = new ConversationCache(store, new LeadStore(db, writer, mapper), config.cacheSize, ConversationCache.Durability.parse(config.cacheMode),
+        config.cacheFlushDelayMs);
+    StubMaxApiClient client = new StubMaxApiClient(mapper);
+    outbound = new OutboundQueue(client, 1_000_000, 1_000_000, 0, 1, 64);
+    outbox = new OutboxDispatcher(db, writer, outbound, config.outboxBatchSize,
+        config.outboxPollIntervalMs, config.outboxMaxAttempts);
+    FlowDefinition definition = FlowDefinition.load(mapper, "");
+    ConversationFlow flow = ConversationFlow.compile(definition, new Screens(mapper, config, definition));
+    DedupFilter dedup = new DedupFilter(TimeUnit.HOURS.toMillis(1), config.dedupMaxEntries);
+    processor = new UpdateProcessor(client, outbound, cache, dedup, flow, outbox, new Metrics(), config, mapper);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    outbox.close();
+    outbound.close();
+    cache.close();
+    store.close();
+    writer.close();
+    db.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  public int handleMessage() throws Exception {
+    int user = nextUser;
+    nextUser = (nextUser + 1) % USERS;
+    int step = steps[user];
+    steps[user] = (step + 1) % SCRIPT.length;
+    long userId = 100 + user;
+    Update update = new Update.MessageCreated(System.currentTimeMillis(),
+        new Update.Message(new Update.User(userId, false), new Update.Body("mid." + (++nextMid), SCRIPT[step])));
+    processor.handleUpdate(update);
+    return step;
+  }
+}
@@ -0,0 +1,612 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Broadcaster implements AutoCloseable {
+  private static final int PAGE_SIZE = 500;
+  private static final int LIST_LIMIT = 20;
+  private static final int MAX_TEXT_LENGTH = 4000;
+  private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final long DRAIN_TIMEOUT_MS = 5_000;
+  private static final long DRAIN_POLL_MS = 100;
+  private static final long IDLE_POLL_MS = 60_000;
+  private static final String RUNNING = "running";
+  private static final String PAUSED = "paused";
+  private static final String CANCELLED = "cancelled";
+  private static final String DONE = "done";
+
+  private static final String SELECT_RECIPIENTS =
+      "SELECT user_id FROM conversations WHERE user_id > ? ORDER BY user_id LIMIT ?";
+  private static final String COUNT_RECIPIENTS = "SELECT COUNT(*) FROM conversations";
+  private static final String INSERT_BROADCAST =
+      "INSERT INTO broadcasts(text, format, status, total, created_at, updated_at) VALUES(?, ?, '" + RUNNING +
+          "', ?, ?, ?)";
+  private static final String SELECT_COLUMNS =
+      "SELECT id, text, format, status, last_user_id, total, sent, failed, elapsed_ms, created_at, updated_at " +
+          "FROM broadcasts ";
+  private static final String SELECT_BROADCAST = SELECT_COLUMNS + "WHERE id = ?";
+  private static final String SELECT_NEXT_RUNNING =
+      SELECT_COLUMNS + "WHERE status = '" + RUNNING + "' ORDER BY id LIMIT 1";
+  private static final String SELECT_RECENT = SELECT_COLUMNS + "ORDER BY id DESC LIMIT " + LIST_LIMIT;
+  private static final String UPDATE_PROGRESS =
+      "UPDATE broadcasts SET last_user_id = ?, sent = ?, failed = ?, elapsed_ms = ?, updated_at = ? WHERE id = ?";
+  private static final String UPDATE_STATUS =
+      "UPDATE broadcasts SET status = ?, updated_at = ? WHERE id = ? AND status = ?";
+
+  private record Broadcast(long id, String text, String format, String status, long lastUserId, long total,
+                           long sent, long failed, long elapsedMs, long createdAt, long updatedAt) {
+    double messagesPerSecond() {
+      return elapsedMs == 0 ? 0.0 : sent * 1000.0 / elapsedMs;
+    }
+  }
+
+  private record Pending(long userId, CompletableFuture<Void> future) {
+  }
+
+  private static final class Progress {
+    final long id;
+    final long total;
+    final long elapsedBeforeMs;
+    final long startedAt = System.nanoTime();
+    long lastUserId;
+    long sent;
+    long failed;
+
+    Progress(Broadcast b) {
+      this.id = b.id();
+      this.total = b.total();
+      this.elapsedBeforeMs = b.elapsedMs();
+      this.lastUserId = b.lastUserId();
+      this.sent = b.sent();
+      this.failed = b.failed();
+    }
+
+    long elapsedMs() {
+      return elapsedBeforeMs + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    double messagesPerSecond() {
+      long elapsed = elapsedMs();
+      return elapsed == 0 ? 0.0 : sent * 1000.0 / elapsed;
+    }
+  }
+
+  private final SqliteDatabase db;
+  private final MaxApiClient client;
+  private final OutboundQueue outbound;
+  private final ObjectMapper mapper;
+  private final TokenBucket bucket;
+  private final Semaphore inFlight;
+  private final Thread thread;
+  private final Object signal = new Object();
+  private boolean woken;
+  private volatile boolean running = true;
+  private volatile long activeId;
+  private volatile long stopId;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  public Broadcaster(SqliteDatabase db, MaxApiClient client, OutboundQueue outbound, ObjectMapper mapper,
+                     double ratePerSecond, int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+    this.db = db;
+    this.client = client;
+    this.outbound = outbound;
+    this.mapper = mapper;
+    this.bucket = new TokenBucket(ratePerSecond, 1);
+    this.inFlight = new Semaphore(maxInFlight);
+    init();
+    this.thread = new Thread(this::run, "broadcaster");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private void init() {
+    try {
+      db.write(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          st.execute("CREATE TABLE IF NOT EXISTS broadcasts (" +
+              "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+              "text TEXT NOT NULL," +
+              "format TEXT," +
+              "status TEXT NOT NULL," +
+              "last_user_id INTEGER NOT NULL DEFAULT 0," +
+              "total INTEGER NOT NULL," +
+              "sent INTEGER NOT NULL DEFAULT 0," +
+              "failed INTEGER NOT NULL DEFAULT 0," +
+              "elapsed_ms INTEGER NOT NULL DEFAULT 0," +
+              "created_at INTEGER NOT NULL," +
+              "updated_at INTEGER NOT NULL" +
+              ")");
+        }
+        return null;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to init DB", e);
+    }
+  }
+
+  public long start(String text, String format) {
+    long now = System.currentTimeMillis();
+    long id;
+    try {
+      id = db.write(conn -> {
+        long total;
+        try (ResultSet rs = conn.prepare(COUNT_RECIPIENTS).executeQuery()) {
+          total = rs.next() ? rs.getLong(1) : 0L;
+        }
+        PreparedStatement ps = conn.prepare(INSERT_BROADCAST);
+        ps.setString(1, text);
+        ps.setString(2, format);
+        ps.setLong(3, total);
+        ps.setLong(4, now);
+        ps.setLong(5, now);
+        ps.executeUpdate();
+        try (Statement st = conn.connection().createStatement();
+             ResultSet rs = st.executeQuery("SELECT last_insert_rowid()")) {
+          rs.next();
+          return rs.getLong(1);
+        }
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB broadcast insert failed", e);
+    }
+    System.out.println("[INFO] Broadcast " + id + " to " + find(id).total() + " user(s) created");
+    wake();
+    return id;
+  }
+
+  public boolean pause(long id) {
+    if (!transition(id, RUNNING, PAUSED)) {
+      return false;
+    }
+    stopId = id;
+    return true;
+  }
+
+  public boolean resume(long id) {
+    if (!transition(id, PAUSED, RUNNING)) {
+      return false;
+    }
+    wake();
+    return true;
+  }
+
+  public boolean cancel(long id) {
+    if (!transition(id, RUNNING, CANCELLED) && !transition(id, PAUSED, CANCELLED)) {
+      return false;
+    }
+    stopId = id;
+    return true;
+  }
+
+  public long sent() {
+    return sent.get();
+  }
+
+  public long failed() {
+    return failed.get();
+  }
+
+  public boolean active() {
+    return activeId != 0;
+  }
+
+  public String describe() {
+    long id = activeId;
+    return "active=" + (id == 0 ? "none" : Long.toString(id)) + " sent=" + sent() + " failed=" + failed();
+  }
+
+  public HttpHandler handler(String token) {
+    byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+    return exchange -> {
+      try (exchange) {
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !MessageDigest.isEqual(expected, auth.getBytes(StandardCharsets.UTF_8))) {
+          exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+          exchange.sendResponseHeaders(401, -1);
+          return;
+        }
+        String rest = exchange.getRequestURI().getPath().substring(exchange.getHttpContext().getPath().length());
+        List<String> segments = new ArrayList<>();
+        for (String s : rest.split("/")) {
+          if (!s.isEmpty()) {
+            segments.add(s);
+          }
+        }
+        String method = exchange.getRequestMethod().toUpperCase();
+        if (segments.isEmpty()) {
+          if ("GET".equals(method)) {
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (Broadcast b : recent()) {
+              list.add(toJson(b));
+            }
+            respond(exchange, 200, list);
+          } else if ("POST".equals(method)) {
+            create(exchange);
+          } else {
+            exchange.sendResponseHeaders(405, -1);
+          }
+          return;
+        }
+        long id;
+        try {
+          id = Long.parseLong(segments.get(0));
+        } catch (NumberFormatException e) {
+          exchange.sendResponseHeaders(404, -1);
+          return;
+        }
+        if (segments.size() == 1 && "GET".equals(method)) {
+          Broadcast b = find(id);
+          if (b == null) {
+            exchange.sendResponseHeaders(404, -1);
+          } else {
+            respond(exchange, 200, toJson(b));
+          }
+          return;
+        }
+        if (segments.size() != 2 || !"POST".equals(method)) {
+          exchange.sendResponseHeaders(segments.size() == 2 ? 405 : 404, -1);
+          return;
+        }
+        boolean changed;
+        switch (segments.get(1)) {
+          case "pause" -> changed = pause(id);
+          case "resume" -> changed = resume(id);
+          case "cancel" -> changed = cancel(id);
+          default -> {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+          }
+        }
+        Broadcast b = find(id);
+        if (b == null) {
+          exchange.sendResponseHeaders(404, -1);
+          return;
+        }
+        if (changed) {
+          System.out.println("[INFO] Broadcast " + id + " " + segments.get(1) + " requested by " +
+              exchange.getRemoteAddress());
+        }
+        respond(exchange, changed ? 200 : 409, toJson(b));
+      } catch (RuntimeException e) {
+        System.err.println("[WARN] Broadcast request failed: " + e.getMessage());
+        exchange.sendResponseHeaders(500, -1);
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join(DRAIN_TIMEOUT_MS + TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void create(HttpExchange exchange) throws IOException {
+    JsonNode body;
+    try {
+      body = mapper.readTree(exchange.getRequestBody());
+    } catch (IOException e) {
+      body = null;
+    }
+    String text = body == null ? "" : body.path("text").asText("").strip();
+    String format = body == null || body.path("format").isMissingNode() ? null : body.path("format").asText(null);
+    String error = null;
+    if (text.isEmpty()) {
+      error = "text is required";
+    } else if (text.length() > MAX_TEXT_LENGTH) {
+      error = "text must not exceed " + MAX_TEXT_LENGTH + " characters";
+    } else if (format != null && !format.isEmpty() && !"markdown".equals(format) && !"html".equals(format)) {
+      error = "format must be markdown or html";
+    }
+    if (error != null) {
+      byte[] bytes = (error + "\n").getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(400, bytes.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(bytes);
+      }
+      return;
+    }
+    long id = start(text, format == null || format.isEmpty() ? null : format);
+    respond(exchange, 201, toJson(find(id)));
+  }
+
+  private void respond(HttpExchange exchange, int code, Object value) throws IOException {
+    byte[] bytes = mapper.writeValueAsBytes(value);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  private static Map<String, Object> toJson(Broadcast b) {
+    Map<String, Object> m = new LinkedHashMap<>();
+    m.put("id", b.id());
+    m.put("status", b.status());
+    m.put("text", b.text());
+    m.put("format", b.format());
+    m.put("total", b.total());
+    m.put("sent", b.sent());
+    m.put("failed", b.failed());
+    m.put("remaining", Math.max(0, b.total() - b.sent() - b.failed()));
+    m.put("last_user_id", b.lastUserId());
+    m.put("messages_per_second", Math.round(b.messagesPerSecond() * 10) / 10.0);
+    m.put("created_at", Instant.ofEpochMilli(b.createdAt()).toString());
+    m.put("updated_at", Instant.ofEpochMilli(b.updatedAt()).toString());
+    return m;
+  }
+
+  private void wake() {
+    synchronized (signal) {
+      woken = true;
+      signal.notifyAll();
+    }
+  }
+
+  private void run() {
+    while (running) {
+      Broadcast next = null;
+      try {
+        next = nextRunning();
+        if (next != null) {
+          deliver(next);
+          continue;
+        }
+      } catch (InterruptedException e) {
+        if (!running) {
+          return;
+        }
+        continue;
+      } catch (Exception e) {
+        System.err.println("[WARN] Broadcast " + (next == null ? "lookup" : next.id()) + " failed: " + e.getMessage());
+      }
+      try {
+        synchronized (signal) {
+          if (!woken) {
+            signal.wait(IDLE_POLL_MS);
+          }
+          woken = false;
+        }
+      } catch (InterruptedException e) {
+        if (!running) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void deliver(Broadcast b) throws InterruptedException {
+    byte[] body;
+    try {
+      body = client.encodeMessage(b.text(), null, b.format());
+    } catch (IOException e) {
+      throw new RuntimeException("Broadcast encoding failed", e);
+    }
+    Progress progress = new Progress(b);
+    ArrayDeque<Pending> window = new ArrayDeque<>();
+    long after = b.lastUserId();
+    long lastCheckpoint = System.nanoTime();
+    long lastReport = lastCheckpoint;
+    boolean stopped = false;
+    stopId = 0;
+    activeId = b.id();
+    System.out.println("[INFO] Broadcast " + b.id() + (b.lastUserId() == 0 ? " started" : " resumed after user_id=" +
+        b.lastUserId()) + ", " + Math.max(0, b.total() - b.sent() - b.failed()) + " user(s) left");
+    try {
+      pages:
+      while (true) {
+        List<Long> page = recipients(after);
+        for (long userId : page) {
+          if (!running || stopId == b.id()) {
+            stopped = true;
+            break pages;
+          }
+          bucket.acquire();
+          inFlight.acquire();
+          CompletableFuture<Void> future = outbound.send(userId, body);
+          future.whenComplete((r, e) -> inFlight.release());
+          window.add(new Pending(userId, future));
+          advance(window, progress);
+          long now = System.nanoTime();
+          if (now - lastCheckpoint >= CHECKPOINT_INTERVAL_NANOS) {
+            lastCheckpoint = now;
+            checkpoint(progress);
+            if (!RUNNING.equals(statusOf(b.id()))) {
+              stopped = true;
+              break pages;
+            }
+          }
+          if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+            lastReport = now;
+            System.out.println("[INFO] Broadcast " + b.id() + ": sent=" + progress.sent + " failed=" + progress.failed +
+                " remaining=" + Math.max(0, progress.total - progress.sent - progress.failed) +
+                " rate=" + Math.round(progress.messagesPerSecond() * 10) / 10.0 + "/s");
+          }
+        }
+        if (page.size() < PAGE_SIZE) {
+          break;
+        }
+        after = page.get(page.size() - 1);
+      }
+    } catch (InterruptedException e) {
+      if (running) {
+        throw e;
+      }
+      stopped = true;
+    } finally {
+      drain(window, progress);
+      checkpoint(progress);
+      activeId = 0;
+    }
+    if (stopped) {
+      System.out.println("[INFO] Broadcast " + b.id() + " stopped after user_id=" + progress.lastUserId +
+          ": sent=" + progress.sent + " failed=" + progress.failed);
+      return;
+    }
+    transition(b.id(), RUNNING, DONE);
+    System.out.println("[INFO] Broadcast " + b.id() + " finished: sent=" + progress.sent + " failed=" + progress.failed +
+        " in " + progress.elapsedMs() / 1000 + " s (" + Math.round(progress.messagesPerSecond() * 10) / 10.0 + "/s)");
+  }
+
+  private void advance(ArrayDeque<Pending> window, Progress progress) {
+    while (!window.isEmpty() && window.peek().future().isDone()) {
+      Pending p = window.poll();
+      if (p.future().isCompletedExceptionally()) {
+        progress.failed++;
+        failed.incrementAndGet();
+      } else {
+        progress.sent++;
+        sent.incrementAndGet();
+      }
+      progress.lastUserId = p.userId();
+    }
+  }
+
+  private void drain(ArrayDeque<Pending> window, Progress progress) {
+    boolean interrupted = Thread.interrupted();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+    for (Pending p : window) {
+      while (!p.future().isDone() && (running || System.nanoTime() - deadline < 0)) {
+        try {
+          p.future().get(DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException ignored) {
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    advance(window, progress);
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void checkpoint(Progress progress) {
+    long now = System.currentTimeMillis();
+    try {
+      db.write(conn -> {
+        PreparedStatement ps = conn.prepare(UPDATE_PROGRESS);
+        ps.setLong(1, progress.lastUserId);
+        ps.setLong(2, progress.sent);
+        ps.setLong(3, progress.failed);
+        ps.setLong(4, progress.elapsedMs());
+        ps.setLong(5, now);
+        ps.setLong(6, progress.id);
+        return ps.executeUpdate();
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB broadcast checkpoint failed", e);
+    }
+  }
+
+  private boolean transition(long id, String from, String to) {
+    long now = System.currentTimeMillis();
+    try {
+      return db.write(conn -> {
+        PreparedStatement ps = conn.prepare(UPDATE_STATUS);
+        ps.setString(1, to);
+        ps.setLong(2, now);
+        ps.setLong(3, id);
+        ps.setString(4, from);
+        return ps.executeUpdate() > 0;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB broadcast update failed", e);
+    }
+  }
+
+  private List<Long> recipients(long afterUserId) {
+    try {
+      return db.read(conn -> {
+        PreparedStatement ps = conn.prepare(SELECT_RECIPIENTS);
+        ps.setLong(1, afterUserId);
+        ps.setInt(2, PAGE_SIZE);
+        List<Long> ids = new ArrayList<>(PAGE_SIZE);
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            ids.add(rs.getLong(1));
+          }
+        }
+        return ids;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB broadcast recipients read failed", e);
+    }
+  }
+
+  private String statusOf(long id) {
+    Broadcast b = find(id);
+    return b == null ? null : b.status();
+  }
+
+  private Broadcast find(long id) {
+    List<Broadcast> found = select(SELECT_BROADCAST, id);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  private Broadcast nextRunning() {
+    List<Broadcast> found = select(SELECT_NEXT_RUNNING, null);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  private List<Broadcast> recent() {
+    return select(SELECT_RECENT, null);
+  }
+
+  private List<Broadcast> select(String sql, Long id) {
+    try {
+      return db.read(conn -> {
+        PreparedStatement ps = conn.prepare(sql);
+        if (id != null) {
+          ps.setLong(1, id);
+        }
+        List<Broadcast> result = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            result.add(new Broadcast(rs.getLong("id"), rs.getString("text"), rs.getString("format"),
+                rs.getString("status"), rs.getLong("last_user_id"), rs.getLong("total"), rs.getLong("sent"),
+                rs.getLong("failed"), rs.getLong("elapsed_ms"), rs.getLong("created_at"), rs.getLong("updated_at")));
+          }
+        }
+        return result;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB broadcast read failed", e);
+    }
+  }
+}
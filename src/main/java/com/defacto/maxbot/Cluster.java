@@ -0,0 +1,530 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import okhttp3.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class Cluster implements AutoCloseable {
+  public static final String UPDATES_PATH = "/cluster/updates";
+  public static final String HANDOFF_PATH = "/cluster/handoff";
+  public static final String PING_PATH = "/cluster/ping";
+  private static final String SECRET_HEADER = "X-Max-Bot-Api-Secret";
+  private static final String NODE_HEADER = "X-Maxbot-Node";
+  private static final MediaType JSON = MediaType.parse("application/json");
+  private static final int HISTORY = 8;
+  private static final int MAX_REQUESTS_PER_NODE = 64;
+
+  private final String self;
+  private final int virtualNodes;
+  private final int failureThreshold;
+  private final long heartbeatMs;
+  private final String secret;
+  private final ObjectMapper mapper;
+  private final ObjectWriter updateWriter;
+  private final OkHttpClient http;
+  private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+  private final List<Consumer<HashRing>> listeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService heartbeat;
+  private volatile HashRing ring;
+  private volatile List<HashRing> history;
+  private volatile Set<Long> handedOff = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong forwarded = new AtomicLong();
+  private final AtomicLong forwardFailures = new AtomicLong();
+  private final AtomicLong ringChanges = new AtomicLong();
+  private final AtomicLong handoffsIn = new AtomicLong();
+  private final AtomicLong handoffsOut = new AtomicLong();
+
+  public Cluster(String self, Collection<String> seeds, int virtualNodes, long heartbeatMs, int failureThreshold,
+                 String secret, ObjectMapper mapper) {
+    this.self = normalize(self);
+    this.virtualNodes = virtualNodes;
+    this.failureThreshold = failureThreshold;
+    this.heartbeatMs = heartbeatMs;
+    this.secret = secret;
+    this.mapper = mapper;
+    this.updateWriter = mapper.writerFor(Update.class);
+    for (String seed : seeds) {
+      String node = normalize(seed);
+      if (!node.equals(this.self)) {
+        peers.put(node, new Peer());
+      }
+    }
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(MAX_REQUESTS_PER_NODE * Math.max(1, peers.size()));
+    dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_NODE);
+    this.http = new OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .connectTimeout(Duration.ofSeconds(1))
+        .readTimeout(Duration.ofSeconds(5))
+        .writeTimeout(Duration.ofSeconds(5))
+        .callTimeout(Duration.ofSeconds(10))
+        .build();
+    this.ring = new HashRing(List.of(this.self), virtualNodes);
+    this.history = List.of();
+    this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "cluster-heartbeat");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public static List<String> parseNodes(String csv) {
+    Set<String> nodes = new LinkedHashSet<>();
+    for (String raw : csv.split(",")) {
+      if (!raw.isBlank()) {
+        nodes.add(normalize(raw));
+      }
+    }
+    return List.copyOf(nodes);
+  }
+
+  public void start() {
+    List<HashRing> servedWithoutSelf;
+    try {
+      servedWithoutSelf = heartbeat();
+    } catch (Exception e) {
+      System.err.println("[WARN] Cluster heartbeat failed: " + e.getMessage());
+      servedWithoutSelf = List.of();
+    }
+    synchronized (this) {
+      history = List.copyOf(servedWithoutSelf.subList(0, Math.min(HISTORY, servedWithoutSelf.size())));
+      handedOff = ConcurrentHashMap.newKeySet();
+    }
+    heartbeat.scheduleWithFixedDelay(this::heartbeatQuietly, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+  }
+
+  public void onRingChange(Consumer<HashRing> listener) {
+    listeners.add(listener);
+  }
+
+  public String self() {
+    return self;
+  }
+
+  public HashRing ring() {
+    return ring;
+  }
+
+  public String owner(long userId) {
+    return ring.owner(userId);
+  }
+
+  public boolean isLocal(long userId) {
+    return self.equals(ring.owner(userId));
+  }
+
+  public boolean movedHere(long userId) {
+    if (!isLocal(userId) || handedOff.contains(userId)) {
+      return false;
+    }
+    for (HashRing previous : history) {
+      if (!self.equals(previous.owner(userId))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public CompletableFuture<Void> forward(String node, List<Update> updates) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try {
+      body.write("{\"updates\":[".getBytes(StandardCharsets.UTF_8));
+      for (int i = 0; i < updates.size(); i++) {
+        if (i > 0) {
+          body.write(',');
+        }
+        updateWriter.writeValue(body, updates.get(i));
+      }
+      body.write("]}".getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    http.newCall(request(node + UPDATES_PATH).post(RequestBody.create(body.toByteArray(), JSON)).build())
+        .enqueue(new Callback() {
+          @Override
+          public void onFailure(Call call, IOException e) {
+            forwardFailures.addAndGet(updates.size());
+            recordFailure(node);
+            future.completeExceptionally(e);
+          }
+
+          @Override
+          public void onResponse(Call call, Response resp) {
+            try (resp) {
+              if (resp.code() == 200) {
+                forwarded.addAndGet(updates.size());
+                future.complete(null);
+              } else {
+                forwardFailures.addAndGet(updates.size());
+                future.completeExceptionally(new IOException("Forward to " + node + " failed: " + resp.code()));
+              }
+            }
+          }
+        });
+    return future;
+  }
+
+  public Conversation fetchHandoff(long userId, Consumer<Conversation> adopt) {
+    handedOff.add(userId);
+    Set<String> asked = new LinkedHashSet<>();
+    for (HashRing previous : history) {
+      String node = previous.owner(userId);
+      Peer peer = node == null ? null : peers.get(node);
+      if (peer == null || !peer.alive || !asked.add(node)) {
+        continue;
+      }
+      HttpUrl url = HttpUrl.parse(node + HANDOFF_PATH).newBuilder()
+          .addQueryParameter("user_id", String.valueOf(userId))
+          .build();
+      try (Response resp = http.newCall(request(url.toString()).post(RequestBody.create(new byte[0], JSON)).build())
+          .execute()) {
+        if (resp.code() == 404) {
+          continue;
+        }
+        if (resp.code() != 200 || resp.body() == null) {
+          System.err.println("[WARN] Handoff of user " + userId + " from " + node + " failed: " + resp.code());
+          continue;
+        }
+        Conversation c = decode(userId, mapper.readTree(resp.body().byteStream()));
+        adopt.accept(c);
+        handoffsIn.incrementAndGet();
+        call(request(url.toString()).delete().build()).whenComplete((ok, e) -> {
+          if (e != null) {
+            System.err.println("[WARN] Handoff of user " + userId + " was not acknowledged to " + node + ": " +
+                e.getMessage());
+          }
+        });
+        return c;
+      } catch (IOException e) {
+        System.err.println("[WARN] Handoff of user " + userId + " from " + node + " failed: " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  public HttpHandler pingHandler() {
+    return exchange -> {
+      try (exchange) {
+        if (!authorized(exchange)) {
+          exchange.sendResponseHeaders(403, -1);
+          return;
+        }
+        String node = exchange.getRequestHeaders().getFirst(NODE_HEADER);
+        if (node != null && !node.isBlank() && HttpUrl.parse(normalize(node)) != null) {
+          node = normalize(node);
+          if ("DELETE".equalsIgnoreCase(exchange.getRequestMethod())) {
+            Peer peer = peers.get(node);
+            if (peer != null) {
+              peer.alive = false;
+              peer.failures.set(failureThreshold);
+              System.out.println("[INFO] Cluster node " + node + " left");
+            }
+          } else if (!node.equals(self)) {
+            Peer peer = peers.computeIfAbsent(node, k -> {
+              System.out.println("[INFO] Cluster node " + k + " joined");
+              return new Peer();
+            });
+            peer.failures.set(0);
+            peer.alive = true;
+          }
+        }
+        HashRing seen = ring;
+        if (node != null) {
+          updateRing();
+        }
+        respond(exchange, 200, String.join(",", seen.nodes()));
+      }
+    };
+  }
+
+  public HttpHandler handoffHandler(ConversationCache cache, ConversationStore local) {
+    return exchange -> {
+      try (exchange) {
+        String method = exchange.getRequestMethod();
+        if (!"POST".equalsIgnoreCase(method) && !"DELETE".equalsIgnoreCase(method)) {
+          exchange.sendResponseHeaders(405, -1);
+          return;
+        }
+        if (!authorized(exchange)) {
+          exchange.sendResponseHeaders(403, -1);
+          return;
+        }
+        long userId;
+        try {
+          userId = Long.parseLong(queryParam(exchange.getRequestURI(), "user_id"));
+        } catch (NumberFormatException e) {
+          respond(exchange, 400, "user_id is required");
+          return;
+        }
+        if ("DELETE".equalsIgnoreCase(method)) {
+          if (!isLocal(userId)) {
+            cache.remove(userId);
+            local.deleteConversation(userId);
+            handoffsOut.incrementAndGet();
+          }
+          exchange.sendResponseHeaders(204, -1);
+          return;
+        }
+        Conversation c = cache.remove(userId);
+        if (c != null) {
+          local.upsertConversation(c);
+        } else {
+          c = local.findConversation(userId);
+        }
+        if (c == null) {
+          exchange.sendResponseHeaders(404, -1);
+          return;
+        }
+        respond(exchange, 200, encode(c).toString());
+      }
+    };
+  }
+
+  public int liveNodes() {
+    return ring.nodes().size();
+  }
+
+  public long forwarded() {
+    return forwarded.get();
+  }
+
+  public long forwardFailures() {
+    return forwardFailures.get();
+  }
+
+  public long ringChanges() {
+    return ringChanges.get();
+  }
+
+  public long handoffsIn() {
+    return handoffsIn.get();
+  }
+
+  public long handoffsOut() {
+    return handoffsOut.get();
+  }
+
+  public String describe() {
+    return "self=" + self +
+        " live=" + liveNodes() + "/" + (peers.size() + 1) +
+        " ring_changes=" + ringChanges.get() +
+        " forwarded=" + forwarded.get() +
+        " forward_failures=" + forwardFailures.get() +
+        " handoffs_in=" + handoffsIn.get() +
+        " handoffs_out=" + handoffsOut.get();
+  }
+
+  @Override
+  public void close() {
+    heartbeat.shutdownNow();
+    List<CompletableFuture<String>> notified = new ArrayList<>();
+    for (Map.Entry<String, Peer> e : peers.entrySet()) {
+      if (e.getValue().alive) {
+        notified.add(call(request(e.getKey() + PING_PATH).delete().build()));
+      }
+    }
+    try {
+      CompletableFuture.allOf(notified.toArray(new CompletableFuture<?>[0])).get(2, TimeUnit.SECONDS);
+    } catch (Exception ignored) {
+    }
+  }
+
+  private void heartbeatQuietly() {
+    try {
+      heartbeat();
+    } catch (Exception e) {
+      System.err.println("[WARN] Cluster heartbeat failed: " + e.getMessage());
+    }
+  }
+
+  private List<HashRing> heartbeat() {
+    List<String> nodes = new ArrayList<>(peers.keySet());
+    List<CompletableFuture<String>> pings = new ArrayList<>(nodes.size());
+    for (String node : nodes) {
+      pings.add(call(request(node + PING_PATH).get().build()));
+    }
+    List<HashRing> withoutSelf = new ArrayList<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      try {
+        List<String> theirs = parseNodes(pings.get(i).join());
+        Peer peer = peers.get(nodes.get(i));
+        peer.failures.set(0);
+        peer.alive = true;
+        if (!theirs.isEmpty() && !theirs.contains(self)
+            && withoutSelf.stream().noneMatch(r -> r.nodes().equals(theirs))) {
+          withoutSelf.add(new HashRing(theirs, virtualNodes));
+        }
+      } catch (Exception e) {
+        recordFailure(nodes.get(i));
+      }
+    }
+    updateRing();
+    return withoutSelf;
+  }
+
+  private void recordFailure(String node) {
+    Peer peer = peers.get(node);
+    if (peer != null && peer.failures.incrementAndGet() >= failureThreshold && peer.alive) {
+      peer.alive = false;
+      if (!heartbeat.isShutdown()) {
+        heartbeat.execute(this::updateRing);
+      }
+    }
+  }
+
+  private synchronized void updateRing() {
+    Set<String> live = new TreeSet<>();
+    live.add(self);
+    for (Map.Entry<String, Peer> e : peers.entrySet()) {
+      if (e.getValue().alive) {
+        live.add(e.getKey());
+      }
+    }
+    if (live.equals(new TreeSet<>(ring.nodes()))) {
+      return;
+    }
+    List<HashRing> updated = new ArrayList<>(HISTORY);
+    updated.add(ring);
+    for (Iterator<HashRing> it = history.iterator(); it.hasNext() && updated.size() < HISTORY; ) {
+      updated.add(it.next());
+    }
+    HashRing next = new HashRing(live, virtualNodes);
+    history = List.copyOf(updated);
+    handedOff = ConcurrentHashMap.newKeySet();
+    ring = next;
+    ringChanges.incrementAndGet();
+    System.out.println("[INFO] Cluster ring changed: " + next.nodes());
+    for (Consumer<HashRing> listener : listeners) {
+      try {
+        listener.accept(next);
+      } catch (Exception e) {
+        System.err.println("[WARN] Cluster rebalance failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private Request.Builder request(String url) {
+    Request.Builder builder = new Request.Builder().url(url).header(NODE_HEADER, self);
+    if (secret != null && !secret.isBlank()) {
+      builder.header(SECRET_HEADER, secret);
+    }
+    return builder;
+  }
+
+  private CompletableFuture<String> call(Request request) {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    http.newCall(request).enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        future.completeExceptionally(e);
+      }
+
+      @Override
+      public void onResponse(Call call, Response resp) {
+        try (resp) {
+          if (resp.isSuccessful()) {
+            future.complete(resp.body() == null ? "" : resp.body().string());
+          } else {
+            future.completeExceptionally(new IOException(request.url() + " returned " + resp.code()));
+          }
+        } catch (IOException e) {
+          future.completeExceptionally(e);
+        }
+      }
+    });
+    return future;
+  }
+
+  private boolean authorized(HttpExchange exchange) {
+    if (secret == null || secret.isBlank()) {
+      return true;
+    }
+    String header = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+    return header != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+        header.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private ObjectNode encode(Conversation c) {
+    ObjectNode node = mapper.createObjectNode()
+        .put("user_id", c.userId)
+        .put("state", c.state)
+        .put("topic", c.topic)
+        .put("phone", c.phone)
+        .put("time_pref", c.timePref);
+    ObjectNode data = node.putObject("data");
+    c.data.forEach(data::put);
+    return node;
+  }
+
+  private static Conversation decode(long userId, JsonNode node) {
+    Conversation c = new Conversation(userId);
+    c.state = node.path("state").asText(Conversation.START);
+    c.topic = node.path("topic").asText("");
+    c.phone = node.path("phone").asText("");
+    c.timePref = node.path("time_pref").asText("");
+    node.path("data").fields().forEachRemaining(e -> c.data.put(e.getKey(), e.getValue().asText()));
+    return c;
+  }
+
+  private static String normalize(String url) {
+    String trimmed = url.trim();
+    return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+  }
+
+  private static String queryParam(URI uri, String name) {
+    String raw = uri.getRawQuery();
+    if (raw != null) {
+      for (String pair : raw.split("&")) {
+        int eq = pair.indexOf('=');
+        if (eq > 0 && pair.substring(0, eq).equals(name)) {
+          return pair.substring(eq + 1);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  private static final class Peer {
+    volatile boolean alive;
+    final AtomicInteger failures = new AtomicInteger();
+  }
+}
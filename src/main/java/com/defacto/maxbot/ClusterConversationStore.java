@@ -0,0 +1,50 @@
+package com.defacto.maxbot;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+public class ClusterConversationStore implements ConversationStore {
+  private final ConversationStore local;
+  private final Cluster cluster;
+
+  public ClusterConversationStore(ConversationStore local, Cluster cluster) {
+    this.local = local;
+    this.cluster = cluster;
+  }
+
+  @Override
+  public Conversation findConversation(long userId) {
+    if (cluster.movedHere(userId)) {
+      Conversation moved = cluster.fetchHandoff(userId, local::upsertConversation);
+      if (moved != null) {
+        return moved;
+      }
+    }
+    return local.findConversation(userId);
+  }
+
+  @Override
+  public CompletableFuture<Void> upsertConversationAsync(Conversation c) {
+    return local.upsertConversationAsync(c);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteConversationAsync(long userId) {
+    return local.deleteConversationAsync(userId);
+  }
+
+  @Override
+  public int expireIdle(long idleBeforeMillis, int limit, LongConsumer expired) {
+    return local.expireIdle(idleBeforeMillis, limit, expired);
+  }
+
+  @Override
+  public String describe() {
+    return local.describe();
+  }
+
+  @Override
+  public void close() {
+    local.close();
+  }
+}
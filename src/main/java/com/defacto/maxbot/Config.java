@@ -1,6 +1,7 @@
 package com.defacto.maxbot;
 
 import java.util.Objects;
+import java.util.function.Function;
 
 public class Config {
   public final String accessToken;
@@ -12,6 +13,51 @@ public class Config {
   public final String webhookUrl;
   public final String webhookSecret;
   public final int port;
+  public final int workers;
+  public final int workerQueueCapacity;
+  public final int pollMaxInFlight;
+  public final int dbReaders;
+  public final int cacheSize;
+  public final String cacheMode;
+  public final long cacheFlushDelayMs;
+  public final long dbCommitIntervalMs;
+  public final int dbCommitMaxRows;
+  public final int apiMaxRequests;
+  public final int apiMaxRequestsPerHost;
+  public final double outboundRate;
+  public final int outboundBurst;
+  public final long outboundChatIntervalMs;
+  public final int outboundMaxAttempts;
+  public final int outboundMaxInFlight;
+  public final int webhookThreads;
+  public final int webhookBacklog;
+  public final long journalCompactIntervalMs;
+  public final long dedupWindowSeconds;
+  public final int dedupMaxEntries;
+  public final boolean dedupPersistent;
+  public final String flowPath;
+  public final int outboxBatchSize;
+  public final long outboxPollIntervalMs;
+  public final int adminPort;
+  public final String storeBackend;
+  public final String storeMmapPath;
+  public final int storeMmapSlots;
+  public final int storeMmapSlotSize;
+  public final long conversationTtlDays;
+  public final long conversationSweepIntervalMs;
+  public final int conversationSweepBatchSize;
+  public final int dbVacuumPages;
+  public final String adminToken;
+  public final String clusterSelf;
+  public final String clusterNodes;
+  public final int clusterVirtualNodes;
+  public final long clusterHeartbeatMs;
+  public final int clusterFailureThreshold;
+  public final int pollCatchupLimit;
+  public final int pollCatchupInFlight;
+  public final double broadcastRate;
+  public final int broadcastMaxInFlight;
+  public final int outboxMaxAttempts;
 
   private Config(
       String accessToken,
@@ -22,7 +68,52 @@ public class Config {
       String mode,
       String webhookUrl,
       String webhookSecret,
-      int port
+      int port,
+      int workers,
+      int workerQueueCapacity,
+      int pollMaxInFlight,
+      int dbReaders,
+      int cacheSize,
+      String cacheMode,
+      long cacheFlushDelayMs,
+      long dbCommitIntervalMs,
+      int dbCommitMaxRows,
+      int apiMaxRequests,
+      int apiMaxRequestsPerHost,
+      double outboundRate,
+      int outboundBurst,
+      long outboundChatIntervalMs,
+      int outboundMaxAttempts,
+      int outboundMaxInFlight,
+      int webhookThreads,
+      int webhookBacklog,
+      long journalCompactIntervalMs,
+      long dedupWindowSeconds,
+      int dedupMaxEntries,
+      boolean dedupPersistent,
+      String flowPath,
+      int outboxBatchSize,
+      long outboxPollIntervalMs,
+      int adminPort,
+      String storeBackend,
+      String storeMmapPath,
+      int storeMmapSlots,
+      int storeMmapSlotSize,
+      long conversationTtlDays,
+      long conversationSweepIntervalMs,
+      int conversationSweepBatchSize,
+      int dbVacuumPages,
+      String adminToken,
+      String clusterSelf,
+      String clusterNodes,
+      int clusterVirtualNodes,
+      long clusterHeartbeatMs,
+      int clusterFailureThreshold,
+      int pollCatchupLimit,
+      int pollCatchupInFlight,
+      double broadcastRate,
+      int broadcastMaxInFlight,
+      int outboxMaxAttempts
   ) {
     this.accessToken = accessToken;
     this.apiBase = apiBase;
@@ -33,18 +124,112 @@ public class Config {
     this.webhookUrl = webhookUrl;
     this.webhookSecret = webhookSecret;
     this.port = port;
+    this.workers = workers;
+    this.workerQueueCapacity = workerQueueCapacity;
+    this.pollMaxInFlight = pollMaxInFlight;
+    this.dbReaders = dbReaders;
+    this.cacheSize = cacheSize;
+    this.cacheMode = cacheMode;
+    this.cacheFlushDelayMs = cacheFlushDelayMs;
+    this.dbCommitIntervalMs = dbCommitIntervalMs;
+    this.dbCommitMaxRows = dbCommitMaxRows;
+    this.apiMaxRequests = apiMaxRequests;
+    this.apiMaxRequestsPerHost = apiMaxRequestsPerHost;
+    this.outboundRate = outboundRate;
+    this.outboundBurst = outboundBurst;
+    this.outboundChatIntervalMs = outboundChatIntervalMs;
+    this.outboundMaxAttempts = outboundMaxAttempts;
+    this.outboundMaxInFlight = outboundMaxInFlight;
+    this.webhookThreads = webhookThreads;
+    this.webhookBacklog = webhookBacklog;
+    this.journalCompactIntervalMs = journalCompactIntervalMs;
+    this.dedupWindowSeconds = dedupWindowSeconds;
+    this.dedupMaxEntries = dedupMaxEntries;
+    this.dedupPersistent = dedupPersistent;
+    this.flowPath = flowPath;
+    this.outboxBatchSize = outboxBatchSize;
+    this.outboxPollIntervalMs = outboxPollIntervalMs;
+    this.adminPort = adminPort;
+    this.storeBackend = storeBackend;
+    this.storeMmapPath = storeMmapPath;
+    this.storeMmapSlots = storeMmapSlots;
+    this.storeMmapSlotSize = storeMmapSlotSize;
+    this.conversationTtlDays = conversationTtlDays;
+    this.conversationSweepIntervalMs = conversationSweepIntervalMs;
+    this.conversationSweepBatchSize = conversationSweepBatchSize;
+    this.dbVacuumPages = dbVacuumPages;
+    this.adminToken = adminToken;
+    this.clusterSelf = clusterSelf;
+    this.clusterNodes = clusterNodes;
+    this.clusterVirtualNodes = clusterVirtualNodes;
+    this.clusterHeartbeatMs = clusterHeartbeatMs;
+    this.clusterFailureThreshold = clusterFailureThreshold;
+    this.pollCatchupLimit = pollCatchupLimit;
+    this.pollCatchupInFlight = pollCatchupInFlight;
+    this.broadcastRate = broadcastRate;
+    this.broadcastMaxInFlight = broadcastMaxInFlight;
+    this.outboxMaxAttempts = outboxMaxAttempts;
   }
 
   public static Config fromEnv() {
-    String accessToken = getenv("MAX_ACCESS_TOKEN", "");
-    String apiBase = getenv("MAX_API_BASE", "https://platform-api.max.ru");
-    String operatorUserId = getenv("OPERATOR_USER_ID", "");
-    String operatorChatUrl = getenv("OPERATOR_CHAT_URL", "");
-    String dbPath = getenv("DB_PATH", "./data/bot.db");
-    String mode = getenv("MODE", "polling").toLowerCase();
-    String webhookUrl = getenv("WEBHOOK_URL", "");
-    String webhookSecret = getenv("WEBHOOK_SECRET", "");
-    int port = Integer.parseInt(getenv("PORT", "8080"));
+    return from(System::getenv);
+  }
+
+  public static Config from(Function<String, String> env) {
+    String accessToken = get(env, "MAX_ACCESS_TOKEN", "");
+    String apiBase = get(env, "MAX_API_BASE", "https://platform-api.max.ru");
+    String operatorUserId = get(env, "OPERATOR_USER_ID", "");
+    String operatorChatUrl = get(env, "OPERATOR_CHAT_URL", "");
+    String dbPath = get(env, "DB_PATH", "./data/bot.db");
+    String mode = get(env, "MODE", "polling").toLowerCase();
+    String webhookUrl = get(env, "WEBHOOK_URL", "");
+    String webhookSecret = get(env, "WEBHOOK_SECRET", "");
+    int port = Integer.parseInt(get(env, "PORT", "8080"));
+    int workers = Integer.parseInt(get(env, "WORKERS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    int workerQueueCapacity = Integer.parseInt(get(env, "WORKER_QUEUE_CAPACITY", "1000"));
+    int pollMaxInFlight = Integer.parseInt(get(env, "POLL_MAX_IN_FLIGHT", "1"));
+    int dbReaders = Integer.parseInt(get(env, "DB_READERS", "4"));
+    int cacheSize = Integer.parseInt(get(env, "CACHE_SIZE", "10000"));
+    String cacheMode = get(env, "CACHE_MODE", "write-through").toLowerCase();
+    long cacheFlushDelayMs = Long.parseLong(get(env, "CACHE_FLUSH_DELAY_MS", "200"));
+    long dbCommitIntervalMs = Long.parseLong(get(env, "DB_COMMIT_INTERVAL_MS", "5"));
+    int dbCommitMaxRows = Integer.parseInt(get(env, "DB_COMMIT_MAX_ROWS", "256"));
+    int apiMaxRequests = Integer.parseInt(get(env, "API_MAX_REQUESTS", "64"));
+    int apiMaxRequestsPerHost = Integer.parseInt(get(env, "API_MAX_REQUESTS_PER_HOST", "16"));
+    double outboundRate = Double.parseDouble(get(env, "OUTBOUND_RATE", "30"));
+    int outboundBurst = Integer.parseInt(get(env, "OUTBOUND_BURST", "30"));
+    long outboundChatIntervalMs = Long.parseLong(get(env, "OUTBOUND_CHAT_INTERVAL_MS", "100"));
+    int outboundMaxAttempts = Integer.parseInt(get(env, "OUTBOUND_MAX_ATTEMPTS", "6"));
+    int outboundMaxInFlight = Integer.parseInt(get(env, "OUTBOUND_MAX_IN_FLIGHT", "16"));
+    int webhookThreads = Integer.parseInt(get(env, "WEBHOOK_THREADS", "4"));
+    int webhookBacklog = Integer.parseInt(get(env, "WEBHOOK_BACKLOG", "256"));
+    long journalCompactIntervalMs = Long.parseLong(get(env, "JOURNAL_COMPACT_INTERVAL_MS", "1000"));
+    long dedupWindowSeconds = Long.parseLong(get(env, "DEDUP_WINDOW_SECONDS", "3600"));
+    int dedupMaxEntries = Integer.parseInt(get(env, "DEDUP_MAX_ENTRIES", "200000"));
+    boolean dedupPersistent = Boolean.parseBoolean(get(env, "DEDUP_PERSISTENT", "false"));
+    String flowPath = get(env, "FLOW_PATH", "");
+    int outboxBatchSize = Integer.parseInt(get(env, "OUTBOX_BATCH_SIZE", "50"));
+    long outboxPollIntervalMs = Long.parseLong(get(env, "OUTBOX_POLL_INTERVAL_MS", "5000"));
+    int adminPort = Integer.parseInt(get(env, "ADMIN_PORT", "0"));
+    String storeBackend = get(env, "STORE_BACKEND", "sqlite").toLowerCase();
+    String storeMmapPath = get(env, "STORE_MMAP_PATH", "./data/conversations.map");
+    int storeMmapSlots = Integer.parseInt(get(env, "STORE_MMAP_SLOTS", "65536"));
+    int storeMmapSlotSize = Integer.parseInt(get(env, "STORE_MMAP_SLOT_SIZE", "1024"));
+    long conversationTtlDays = Long.parseLong(get(env, "CONVERSATION_TTL_DAYS", "0"));
+    long conversationSweepIntervalMs = Long.parseLong(get(env, "CONVERSATION_SWEEP_INTERVAL_MS", "600000"));
+    int conversationSweepBatchSize = Integer.parseInt(get(env, "CONVERSATION_SWEEP_BATCH_SIZE", "500"));
+    int dbVacuumPages = Integer.parseInt(get(env, "DB_VACUUM_PAGES", "1000"));
+    String adminToken = get(env, "ADMIN_TOKEN", "");
+    String clusterSelf = get(env, "CLUSTER_SELF", "");
+    String clusterNodes = get(env, "CLUSTER_NODES", "");
+    int clusterVirtualNodes = Integer.parseInt(get(env, "CLUSTER_VIRTUAL_NODES", "128"));
+    long clusterHeartbeatMs = Long.parseLong(get(env, "CLUSTER_HEARTBEAT_MS", "1000"));
+    int clusterFailureThreshold = Integer.parseInt(get(env, "CLUSTER_FAILURE_THRESHOLD", "3"));
+    int pollCatchupLimit = Integer.parseInt(get(env, "POLL_CATCHUP_LIMIT", "1000"));
+    int pollCatchupInFlight = Integer.parseInt(get(env, "POLL_CATCHUP_IN_FLIGHT", "4"));
+    double broadcastRate = Double.parseDouble(get(env, "BROADCAST_RATE", "10"));
+    int broadcastMaxInFlight = Integer.parseInt(get(env, "BROADCAST_MAX_IN_FLIGHT", "32"));
+    int outboxMaxAttempts = Integer.parseInt(get(env, "OUTBOX_MAX_ATTEMPTS", "20"));
 
     return new Config(
         accessToken,
@@ -55,7 +240,52 @@ public class Config {
         mode,
         webhookUrl,
         webhookSecret,
-        port
+        port,
+        workers,
+        workerQueueCapacity,
+        pollMaxInFlight,
+        dbReaders,
+        cacheSize,
+        cacheMode,
+        cacheFlushDelayMs,
+        dbCommitIntervalMs,
+        dbCommitMaxRows,
+        apiMaxRequests,
+        apiMaxRequestsPerHost,
+        outboundRate,
+        outboundBurst,
+        outboundChatIntervalMs,
+        outboundMaxAttempts,
+        outboundMaxInFlight,
+        webhookThreads,
+        webhookBacklog,
+        journalCompactIntervalMs,
+        dedupWindowSeconds,
+        dedupMaxEntries,
+        dedupPersistent,
+        flowPath,
+        outboxBatchSize,
+        outboxPollIntervalMs,
+        adminPort,
+        storeBackend,
+        storeMmapPath,
+        storeMmapSlots,
+        storeMmapSlotSize,
+        conversationTtlDays,
+        conversationSweepIntervalMs,
+        conversationSweepBatchSize,
+        dbVacuumPages,
+        adminToken,
+        clusterSelf,
+        clusterNodes,
+        clusterVirtualNodes,
+        clusterHeartbeatMs,
+        clusterFailureThreshold,
+        pollCatchupLimit,
+        pollCatchupInFlight,
+        broadcastRate,
+        broadcastMaxInFlight,
+        outboxMaxAttempts
     );
   }
 
@@ -69,10 +299,145 @@ public class Config {
     if (Objects.equals(mode, "webhook") && webhookUrl.isBlank()) {
       throw new IllegalStateException("WEBHOOK_URL is required when MODE=webhook");
     }
+    if (workers < 1) {
+      throw new IllegalStateException("WORKERS must be positive");
+    }
+    if (workerQueueCapacity < 1) {
+      throw new IllegalStateException("WORKER_QUEUE_CAPACITY must be positive");
+    }
+    if (pollMaxInFlight < 1) {
+      throw new IllegalStateException("POLL_MAX_IN_FLIGHT must be positive");
+    }
+    if (dbReaders < 1) {
+      throw new IllegalStateException("DB_READERS must be positive");
+    }
+    if (cacheSize < 1) {
+      throw new IllegalStateException("CACHE_SIZE must be positive");
+    }
+    if (!Objects.equals(cacheMode, "write-through") && !Objects.equals(cacheMode, "write-behind")) {
+      throw new IllegalStateException("CACHE_MODE must be write-through or write-behind");
+    }
+    if (cacheFlushDelayMs < 1) {
+      throw new IllegalStateException("CACHE_FLUSH_DELAY_MS must be positive");
+    }
+    if (dbCommitIntervalMs < 0) {
+      throw new IllegalStateException("DB_COMMIT_INTERVAL_MS must not be negative");
+    }
+    if (dbCommitMaxRows < 1) {
+      throw new IllegalStateException("DB_COMMIT_MAX_ROWS must be positive");
+    }
+    if (apiMaxRequests < 1) {
+      throw new IllegalStateException("API_MAX_REQUESTS must be positive");
+    }
+    if (apiMaxRequestsPerHost < 1) {
+      throw new IllegalStateException("API_MAX_REQUESTS_PER_HOST must be positive");
+    }
+    if (outboundRate <= 0) {
+      throw new IllegalStateException("OUTBOUND_RATE must be positive");
+    }
+    if (outboundBurst < 1) {
+      throw new IllegalStateException("OUTBOUND_BURST must be positive");
+    }
+    if (outboundChatIntervalMs < 0) {
+      throw new IllegalStateException("OUTBOUND_CHAT_INTERVAL_MS must not be negative");
+    }
+    if (outboundMaxAttempts < 1) {
+      throw new IllegalStateException("OUTBOUND_MAX_ATTEMPTS must be positive");
+    }
+    if (outboundMaxInFlight < 1) {
+      throw new IllegalStateException("OUTBOUND_MAX_IN_FLIGHT must be positive");
+    }
+    if (webhookThreads < 1) {
+      throw new IllegalStateException("WEBHOOK_THREADS must be positive");
+    }
+    if (webhookBacklog < 1) {
+      throw new IllegalStateException("WEBHOOK_BACKLOG must be positive");
+    }
+    if (journalCompactIntervalMs < 1) {
+      throw new IllegalStateException("JOURNAL_COMPACT_INTERVAL_MS must be positive");
+    }
+    if (dedupWindowSeconds < 1) {
+      throw new IllegalStateException("DEDUP_WINDOW_SECONDS must be positive");
+    }
+    if (dedupMaxEntries < 1 || dedupMaxEntries > (1 << 24)) {
+      throw new IllegalStateException("DEDUP_MAX_ENTRIES must be between 1 and " + (1 << 24));
+    }
+    if (outboxBatchSize < 1) {
+      throw new IllegalStateException("OUTBOX_BATCH_SIZE must be positive");
+    }
+    if (outboxPollIntervalMs < 1) {
+      throw new IllegalStateException("OUTBOX_POLL_INTERVAL_MS must be positive");
+    }
+    if (adminPort < 0) {
+      throw new IllegalStateException("ADMIN_PORT must not be negative");
+    }
+    if (Objects.equals(mode, "webhook") && adminPort != 0 && adminPort == port) {
+      throw new IllegalStateException("ADMIN_PORT must differ from PORT in webhook mode");
+    }
+    if (!Objects.equals(storeBackend, "sqlite") && !Objects.equals(storeBackend, "memory") &&
+        !Objects.equals(storeBackend, "mmap")) {
+      throw new IllegalStateException("STORE_BACKEND must be sqlite, memory or mmap");
+    }
+    if (storeMmapSlots < 1) {
+      throw new IllegalStateException("STORE_MMAP_SLOTS must be positive");
+    }
+    if (storeMmapSlotSize < 128) {
+      throw new IllegalStateException("STORE_MMAP_SLOT_SIZE must be at least 128");
+    }
+    if ((long) storeMmapSlots * storeMmapSlotSize > Integer.MAX_VALUE - 64) {
+      throw new IllegalStateException("STORE_MMAP_SLOTS * STORE_MMAP_SLOT_SIZE must not exceed 2 GB");
+    }
+    if (conversationTtlDays < 0) {
+      throw new IllegalStateException("CONVERSATION_TTL_DAYS must not be negative");
+    }
+    if (conversationSweepIntervalMs < 1) {
+      throw new IllegalStateException("CONVERSATION_SWEEP_INTERVAL_MS must be positive");
+    }
+    if (conversationSweepBatchSize < 1) {
+      throw new IllegalStateException("CONVERSATION_SWEEP_BATCH_SIZE must be positive");
+    }
+    if (dbVacuumPages < 0) {
+      throw new IllegalStateException("DB_VACUUM_PAGES must not be negative");
+    }
+    if (!clusterNodes.isBlank()) {
+      if (!Objects.equals(mode, "webhook")) {
+        throw new IllegalStateException("CLUSTER_NODES requires MODE=webhook");
+      }
+      if (clusterSelf.isBlank()) {
+        throw new IllegalStateException("CLUSTER_SELF is required when CLUSTER_NODES is set");
+      }
+      if (webhookSecret.isBlank()) {
+        throw new IllegalStateException("WEBHOOK_SECRET is required when CLUSTER_NODES is set");
+      }
+    }
+    if (clusterVirtualNodes < 1) {
+      throw new IllegalStateException("CLUSTER_VIRTUAL_NODES must be positive");
+    }
+    if (clusterHeartbeatMs < 1) {
+      throw new IllegalStateException("CLUSTER_HEARTBEAT_MS must be positive");
+    }
+    if (clusterFailureThreshold < 1) {
+      throw new IllegalStateException("CLUSTER_FAILURE_THRESHOLD must be positive");
+    }
+    if (pollCatchupLimit < 50 || pollCatchupLimit > 1000) {
+      throw new IllegalStateException("POLL_CATCHUP_LIMIT must be between 50 and 1000");
+    }
+    if (pollCatchupInFlight < pollMaxInFlight) {
+      throw new IllegalStateException("POLL_CATCHUP_IN_FLIGHT must not be less than POLL_MAX_IN_FLIGHT");
+    }
+    if (broadcastRate <= 0) {
+      throw new IllegalStateException("BROADCAST_RATE must be positive");
+    }
+    if (broadcastMaxInFlight < 1) {
+      throw new IllegalStateException("BROADCAST_MAX_IN_FLIGHT must be positive");
+    }
+    if (outboxMaxAttempts < 1) {
+      throw new IllegalStateException("OUTBOX_MAX_ATTEMPTS must be positive");
+    }
   }
 
-  private static String getenv(String key, String def) {
-    String v = System.getenv(key);
+  private static String get(Function<String, String> env, String key, String def) {
+    String v = env.apply(key);
     return v == null ? def : v;
   }
 }
@@ -1,32 +1,12 @@
 package com.defacto.maxbot;
 
-import java.util.HashMap;
 import java.util.Map;
 
 public class Conversation {
-  public enum State {
-    START,
-    REPLAN_1,
-    REPLAN_2,
-    REPLAN_CITY,
-    KAD_1,
-    PRIREZ_1,
-    PRIREZ_2,
-    TAX_1,
-    BUILD_1,
-    BUILD_2,
-    LAND_1,
-    LAND_2,
-    CONST_1,
-    CONST_2,
-    CONST_ISSUE,
-    LEAD_PHONE_PROMPT,
-    LEAD_PHONE_INPUT,
-    LEAD_TIME
-  }
+  public static final String START = "START";
 
   public long userId;
-  public State state;
+  public String state;
   public String topic;
   public String phone;
   public String timePref;
@@ -34,10 +14,20 @@ public class Conversation {
 
   public Conversation(long userId) {
     this.userId = userId;
-    this.state = State.START;
+    this.state = START;
     this.topic = "";
     this.phone = "";
     this.timePref = "";
-    this.data = new HashMap<>();
+    this.data = new ConversationData();
+  }
+
+  public Conversation copy() {
+    Conversation c = new Conversation(userId);
+    c.state = state;
+    c.topic = topic;
+    c.phone = phone;
+    c.timePref = timePref;
+    c.data = new ConversationData(data);
+    return c;
   }
 }
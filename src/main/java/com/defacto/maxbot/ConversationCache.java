@@ -0,0 +1,344 @@
+package com.defacto.maxbot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+public class ConversationCache {
+  public enum Durability {
+    WRITE_THROUGH,
+    WRITE_BEHIND;
+
+    public static Durability parse(String raw) {
+      return switch (raw == null ? "" : raw.trim().toLowerCase()) {
+        case "write-behind", "write_behind" -> WRITE_BEHIND;
+        case "", "write-through", "write_through" -> WRITE_THROUGH;
+        default -> throw new IllegalArgumentException("Unknown cache mode: " + raw);
+      };
+    }
+  }
+
+  private static final int STRIPES = 64;
+
+  private final ConversationStore store;
+  private final LeadStore leads;
+  private final int capacity;
+  private final Durability durability;
+  private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Object[] stripes = new Object[STRIPES];
+  private final ThreadLocal<Map<Long, Conversation>> touched = ThreadLocal.withInitial(LinkedHashMap::new);
+  private final ScheduledExecutorService flusher;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong flushedRows = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private int dirty;
+
+  public ConversationCache(ConversationStore store, LeadStore leads, int capacity, Durability durability,
+                           long maxFlushDelayMs) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.store = store;
+    this.leads = leads;
+    this.capacity = capacity;
+    this.durability = durability;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+    if (durability == Durability.WRITE_BEHIND) {
+      this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "conversation-flusher");
+        t.setDaemon(true);
+        return t;
+      });
+      flusher.scheduleWithFixedDelay(this::flushQuietly, maxFlushDelayMs, maxFlushDelayMs, TimeUnit.MILLISECONDS);
+    } else {
+      this.flusher = null;
+    }
+  }
+
+  public Conversation getConversation(long userId) {
+    Conversation inUpdate = touched.get().get(userId);
+    if (inUpdate != null) {
+      hits.incrementAndGet();
+      return inUpdate;
+    }
+    synchronized (this) {
+      Entry e = entries.get(userId);
+      if (e != null) {
+        hits.incrementAndGet();
+        return e.conversation;
+      }
+    }
+    Conversation loaded;
+    boolean created;
+    synchronized (stripe(userId)) {
+      synchronized (this) {
+        Entry e = entries.get(userId);
+        if (e != null) {
+          hits.incrementAndGet();
+          return e.conversation;
+        }
+      }
+      misses.incrementAndGet();
+      loaded = store.findConversation(userId);
+      created = loaded == null;
+      if (created) {
+        loaded = new Conversation(userId);
+      }
+      synchronized (this) {
+        entries.put(userId, new Entry(loaded));
+        evictIfNeeded();
+      }
+    }
+    if (created) {
+      upsertConversation(loaded);
+    }
+    return loaded;
+  }
+
+  public void upsertConversation(Conversation c) {
+    writes.incrementAndGet();
+    touched.get().put(c.userId, c);
+  }
+
+  public void resetConversation(Conversation c) {
+    c.state = Conversation.START;
+    c.topic = "";
+    c.phone = "";
+    c.timePref = "";
+    c.data.clear();
+    upsertConversation(c);
+  }
+
+  public void saveLead(Conversation c, long notifyUserId, byte[] notification) {
+    leads.saveLead(c, notifyUserId, notification);
+  }
+
+  public void endUpdate() {
+    Map<Long, Conversation> pending = touched.get();
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<Conversation> snapshots = new ArrayList<>(pending.size());
+    for (Conversation c : pending.values()) {
+      snapshots.add(c.copy());
+    }
+    pending.clear();
+    if (durability == Durability.WRITE_THROUGH) {
+      List<CompletableFuture<Void>> writes = new ArrayList<>(snapshots.size());
+      for (Conversation snapshot : snapshots) {
+        writes.add(store.upsertConversationAsync(snapshot));
+      }
+      try {
+        awaitAll(writes);
+      } catch (RuntimeException e) {
+        for (Conversation snapshot : snapshots) {
+          discard(snapshot.userId);
+        }
+        throw e;
+      }
+      flushedRows.addAndGet(snapshots.size());
+      return;
+    }
+    synchronized (this) {
+      for (Conversation snapshot : snapshots) {
+        Entry e = entries.get(snapshot.userId);
+        if (e == null) {
+          e = new Entry(snapshot.copy());
+          entries.put(snapshot.userId, e);
+        }
+        if (e.pending == null) {
+          dirty++;
+        }
+        e.pending = snapshot;
+      }
+      evictIfNeeded();
+    }
+  }
+
+  public void flush() {
+    List<Conversation> batch = new ArrayList<>();
+    synchronized (this) {
+      for (Entry e : entries.values()) {
+        if (e.pending != null) {
+          batch.add(e.pending);
+        }
+      }
+    }
+    List<CompletableFuture<Void>> writes = new ArrayList<>(batch.size());
+    for (Conversation snapshot : batch) {
+      writes.add(store.upsertConversationAsync(snapshot).whenComplete((r, error) -> {
+        synchronized (this) {
+          Entry e = entries.get(snapshot.userId);
+          if (e == null || e.pending != snapshot) {
+            return;
+          }
+          if (error == null) {
+            flushedRows.incrementAndGet();
+            e.pending = null;
+            dirty--;
+          } else {
+            entries.remove(snapshot.userId);
+            dirty--;
+            System.err.println("[WARN] Dropping unflushed conversation of user " + snapshot.userId + ": " + error);
+          }
+        }
+      }));
+    }
+    awaitAll(writes);
+    if (!batch.isEmpty()) {
+      synchronized (this) {
+        evictIfNeeded();
+      }
+    }
+  }
+
+  public Conversation remove(long userId) {
+    synchronized (stripe(userId)) {
+      Entry e = discard(userId);
+      return e == null ? null : e.conversation.copy();
+    }
+  }
+
+  public void evictExpired(long userId) {
+    synchronized (stripe(userId)) {
+      synchronized (this) {
+        Entry e = entries.get(userId);
+        if (e != null && e.pending == null) {
+          entries.remove(userId);
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public void evictUnless(LongPredicate keep) {
+    flush();
+    synchronized (this) {
+      Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Long, Entry> e = it.next();
+        if (e.getValue().pending == null && !keep.test(e.getKey())) {
+          it.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public void close() {
+    if (flusher != null) {
+      flusher.shutdown();
+      try {
+        flusher.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized int dirtyEntries() {
+    return dirty;
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public double hitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  public long writes() {
+    return writes.get();
+  }
+
+  public long flushedRows() {
+    return flushedRows.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  public String describe() {
+    return "size=" + size() +
+        " dirty=" + dirtyEntries() +
+        " hit_rate=" + Math.round(hitRate() * 100) + "%" +
+        " writes=" + writes() +
+        " flushed=" + flushedRows() +
+        " evictions=" + evictions();
+  }
+
+  private static void awaitAll(List<CompletableFuture<Void>> writes) {
+    try {
+      CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+    } catch (CompletionException e) {
+      throw new RuntimeException("DB upsert failed", e.getCause());
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (Exception e) {
+      System.err.println("[WARN] Conversation flush failed: " + e.getMessage());
+    }
+  }
+
+  private synchronized Entry discard(long userId) {
+    Entry e = entries.remove(userId);
+    if (e != null && e.pending != null) {
+      dirty--;
+    }
+    return e;
+  }
+
+  private Object stripe(long userId) {
+    return stripes[(int) Math.floorMod(userId, (long) STRIPES)];
+  }
+
+  private void evictIfNeeded() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (entries.size() > capacity && it.hasNext()) {
+      Entry e = it.next();
+      if (e.pending == null) {
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private static final class Entry {
+    final Conversation conversation;
+    Conversation pending;
+
+    Entry(Conversation conversation) {
+      this.conversation = conversation;
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package com.defacto.maxbot;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+public final class ConversationData extends AbstractMap<String, String> {
+  private static final byte FORMAT = 1;
+  private static final int INLINE_KEY = 0;
+  private static final String[] KEYS = {
+      "replan_type",
+      "replan_city",
+      "kad_type",
+      "prirez_purpose",
+      "prirez_settlement",
+      "tax_input",
+      "build_type",
+      "build_settlement",
+      "land_settlement",
+      "land_desc",
+      "const_role",
+      "const_issue",
+      "last_menu_at"
+  };
+  private static final Map<String, Integer> IDS = new HashMap<>();
+
+  static {
+    for (int i = 0; i < KEYS.length; i++) {
+      IDS.put(KEYS[i], i);
+    }
+  }
+
+  private final String[] values = new String[KEYS.length];
+  private Map<String, String> extra;
+  private int size;
+
+  public ConversationData() {
+  }
+
+  public ConversationData(Map<String, String> source) {
+    putAll(source);
+  }
+
+  @Override
+  public String get(Object key) {
+    Integer id = IDS.get(key);
+    if (id != null) {
+      return values[id];
+    }
+    return extra == null ? null : extra.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public String put(String key, String value) {
+    Objects.requireNonNull(key, "key");
+    Objects.requireNonNull(value, "value");
+    Integer id = IDS.get(key);
+    String old;
+    if (id != null) {
+      old = values[id];
+      values[id] = value;
+    } else {
+      if (extra == null) {
+        extra = new LinkedHashMap<>(4);
+      }
+      old = extra.put(key, value);
+    }
+    if (old == null) {
+      size++;
+    }
+    return old;
+  }
+
+  @Override
+  public String remove(Object key) {
+    Integer id = IDS.get(key);
+    String old;
+    if (id != null) {
+      old = values[id];
+      values[id] = null;
+    } else {
+      old = extra == null ? null : extra.remove(key);
+    }
+    if (old != null) {
+      size--;
+    }
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    for (int i = 0; i < values.length; i++) {
+      values[i] = null;
+    }
+    extra = null;
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return new AbstractSet<>() {
+      @Override
+      public Iterator<Entry<String, String>> iterator() {
+        return new Entries();
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+  public static boolean isEncoded(byte[] raw) {
+    return raw != null && raw.length > 0 && raw[0] == FORMAT;
+  }
+
+  public static byte[] encode(Map<String, String> data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16 + data.size() * 24);
+    out.write(FORMAT);
+    writeVarint(out, data.size());
+    for (Map.Entry<String, String> e : data.entrySet()) {
+      Integer id = IDS.get(e.getKey());
+      if (id != null) {
+        writeVarint(out, id + 1);
+      } else {
+        writeVarint(out, INLINE_KEY);
+        writeString(out, e.getKey());
+      }
+      writeString(out, e.getValue());
+    }
+    return out.toByteArray();
+  }
+
+  public static ConversationData decode(byte[] raw) {
+    ConversationData data = new ConversationData();
+    if (raw == null || raw.length == 0) {
+      return data;
+    }
+    if (raw[0] != FORMAT) {
+      throw new IllegalArgumentException("Unknown conversation data format " + raw[0]);
+    }
+    Reader in = new Reader(raw, 1);
+    int count = in.varint();
+    for (int i = 0; i < count; i++) {
+      int id = in.varint();
+      String key;
+      if (id == INLINE_KEY) {
+        key = in.string();
+      } else if (id <= KEYS.length) {
+        key = KEYS[id - 1];
+      } else {
+        throw new IllegalArgumentException("Unknown conversation data key id " + id);
+      }
+      data.put(key, in.string());
+    }
+    return data;
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int v) {
+    while ((v & ~0x7f) != 0) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  private static final class Reader {
+    private final byte[] raw;
+    private int pos;
+
+    Reader(byte[] raw, int pos) {
+      this.raw = raw;
+      this.pos = pos;
+    }
+
+    int varint() {
+      int v = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        if (pos >= raw.length) {
+          throw new IllegalArgumentException("Truncated conversation data");
+        }
+        byte b = raw[pos++];
+        v |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return v;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint in conversation data");
+    }
+
+    String string() {
+      int length = varint();
+      if (length < 0 || length > raw.length - pos) {
+        throw new IllegalArgumentException("Truncated conversation data");
+      }
+      String s = new String(raw, pos, length, StandardCharsets.UTF_8);
+      pos += length;
+      return s;
+    }
+  }
+
+  private final class Entries implements Iterator<Entry<String, String>> {
+    private int next;
+    private Iterator<Entry<String, String>> extraIterator;
+    private int last = -1;
+
+    Entries() {
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < values.length || (extraIterator != null && extraIterator.hasNext());
+    }
+
+    @Override
+    public Entry<String, String> next() {
+      if (next < values.length) {
+        last = next;
+        Entry<String, String> e = new SimpleImmutableEntry<>(KEYS[next], values[next]);
+        next++;
+        advance();
+        return e;
+      }
+      if (extraIterator == null) {
+        throw new NoSuchElementException();
+      }
+      last = values.length;
+      return extraIterator.next();
+    }
+
+    @Override
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      if (last < values.length) {
+        values[last] = null;
+      } else {
+        extraIterator.remove();
+      }
+      size--;
+      last = -1;
+    }
+
+    private void advance() {
+      while (next < values.length && values[next] == null) {
+        next++;
+      }
+      if (next == values.length && extraIterator == null && extra != null) {
+        extraIterator = extra.entrySet().iterator();
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package com.defacto.maxbot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public final class ConversationFlow {
+  public record Option(String topic, Map<String, String> set, String storeKey, Step next, boolean submit) {
+  }
+
+  public record Input(String key, boolean phoneField, boolean validatePhone, Step next, Step invalid) {
+    public boolean accepts(String text) {
+      if (!validatePhone) {
+        return true;
+      }
+      int digits = Labels.digitCount(text);
+      return digits >= 10 && digits <= 15;
+    }
+  }
+
+  public record Detail(String key, String label) {
+  }
+
+  public static final class Step {
+    private final String name;
+    private final Screens.Screen screen;
+    private final Screens.Screen enterScreen;
+    private final Map<String, Option> options = new HashMap<>();
+    private Input input;
+
+    private Step(String name, Screens.Screen screen, Screens.Screen enterScreen) {
+      this.name = name;
+      this.screen = screen;
+      this.enterScreen = enterScreen;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    public Screens.Screen screen() {
+      return screen;
+    }
+
+    public Screens.Screen enterScreen() {
+      return enterScreen;
+    }
+
+    public Option option(String normalized) {
+      return options.get(normalized);
+    }
+
+    public Input input() {
+      return input;
+    }
+  }
+
+  private final Map<String, Step> steps;
+  private final Step start;
+  private final Set<String> menuCommands;
+  private final Set<String> contactCommands;
+  private final Set<String> startLabels;
+  private final String contactTopic;
+  private final Step contactNext;
+  private final Screens.Screen leadConfirm;
+  private final Map<String, List<String>> topics;
+  private final List<Detail> details;
+
+  private ConversationFlow(Map<String, Step> steps, Step start, Set<String> menuCommands, Set<String> contactCommands,
+                           Set<String> startLabels, String contactTopic, Step contactNext, Screens.Screen leadConfirm,
+                           Map<String, List<String>> topics, List<Detail> details) {
+    this.steps = steps;
+    this.start = start;
+    this.menuCommands = menuCommands;
+    this.contactCommands = contactCommands;
+    this.startLabels = startLabels;
+    this.contactTopic = contactTopic;
+    this.contactNext = contactNext;
+    this.leadConfirm = leadConfirm;
+    this.topics = topics;
+    this.details = details;
+  }
+
+  public static ConversationFlow compile(FlowDefinition def, Screens screens) {
+    if (def.states() == null || def.states().isEmpty()) {
+      throw new IllegalStateException("Flow has no states");
+    }
+    Map<String, Step> steps = new HashMap<>();
+    for (Map.Entry<String, FlowDefinition.StateDef> e : def.states().entrySet()) {
+      FlowDefinition.StateDef s = e.getValue();
+      Screens.Screen screen = screens.get(s.screen());
+      Screens.Screen enter = s.enterScreen() == null ? screen : screens.get(s.enterScreen());
+      steps.put(e.getKey(), new Step(e.getKey(), screen, enter));
+    }
+    for (Map.Entry<String, FlowDefinition.StateDef> e : def.states().entrySet()) {
+      Step step = steps.get(e.getKey());
+      FlowDefinition.StateDef s = e.getValue();
+      if (s.options() != null) {
+        for (FlowDefinition.OptionDef o : s.options()) {
+          Step next = o.submit() ? null : require(steps, o.next(), e.getKey());
+          Option option = new Option(o.topic(), o.set() == null ? Map.of() : Map.copyOf(o.set()), o.store(), next,
+              o.submit());
+          if (step.options.put(Labels.normalize(o.label()), option) != null) {
+            throw new IllegalStateException("Flow state " + e.getKey() + " has duplicate option " + o.label());
+          }
+        }
+      }
+      FlowDefinition.InputDef in = s.input();
+      if (in != null) {
+        boolean phoneField = "phone".equals(in.field());
+        if (!phoneField && (in.key() == null || in.key().isBlank())) {
+          throw new IllegalStateException("Flow state " + e.getKey() + " input needs a key or field");
+        }
+        step.input = new Input(in.key(), phoneField, "phone".equals(in.validate()),
+            require(steps, in.next(), e.getKey()),
+            in.invalid() == null ? null : require(steps, in.invalid(), e.getKey()));
+      }
+    }
+    Step start = require(steps, def.start(), "start");
+    Set<String> startLabels = new HashSet<>(start.options.keySet());
+
+    FlowDefinition.Contact contact = def.contact();
+    Set<String> contactCommands = new HashSet<>();
+    String contactTopic = "";
+    Step contactNext = null;
+    if (contact != null) {
+      for (String cmd : contact.commands()) {
+        contactCommands.add(Labels.normalize(cmd));
+      }
+      contactTopic = contact.topic() == null ? "" : contact.topic();
+      contactNext = require(steps, contact.next(), "contact");
+    }
+    Set<String> menuCommands = new HashSet<>();
+    if (def.menuCommands() != null) {
+      for (String cmd : def.menuCommands()) {
+        menuCommands.add(Labels.normalize(cmd));
+      }
+    }
+    List<Detail> details = new ArrayList<>();
+    if (def.details() != null) {
+      for (FlowDefinition.Detail d : def.details()) {
+        details.add(new Detail(d.key(), d.label()));
+      }
+    }
+    return new ConversationFlow(Map.copyOf(steps), start, Set.copyOf(menuCommands), Set.copyOf(contactCommands),
+        Set.copyOf(startLabels), contactTopic, contactNext, screens.get(def.leadConfirm()),
+        def.topics() == null ? Map.of() : Map.copyOf(def.topics()), List.copyOf(details));
+  }
+
+  private static Step require(Map<String, Step> steps, String name, String from) {
+    Step step = name == null ? null : steps.get(name);
+    if (step == null) {
+      throw new IllegalStateException("Flow " + from + " refers to unknown state " + name);
+    }
+    return step;
+  }
+
+  public Step start() {
+    return start;
+  }
+
+  public Step step(String state) {
+    Step step = state == null ? null : steps.get(state);
+    return step == null ? start : step;
+  }
+
+  public boolean isMenuCommand(String normalized) {
+    return menuCommands.contains(normalized);
+  }
+
+  public boolean isContactCommand(String normalized) {
+    return contactNext != null && contactCommands.contains(normalized);
+  }
+
+  public boolean isStartLabel(String normalized) {
+    return startLabels.contains(normalized);
+  }
+
+  public String contactTopic() {
+    return contactTopic;
+  }
+
+  public Step contactNext() {
+    return contactNext;
+  }
+
+  public Screens.Screen leadConfirm() {
+    return leadConfirm;
+  }
+
+  public List<String> topicKeys(String topic) {
+    return topics.get(topic);
+  }
+
+  public List<Detail> details() {
+    return details;
+  }
+}
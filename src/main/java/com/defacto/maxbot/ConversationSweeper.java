@@ -0,0 +1,165 @@
+package com.defacto.maxbot;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConversationSweeper implements AutoCloseable {
+  private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+  private final ConversationStore store;
+  private final ConversationCache cache;
+  private final SqliteDatabase db;
+  private final long ttlMs;
+  private final int batchSize;
+  private final int vacuumPages;
+  private final boolean incremental;
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong sweeps = new AtomicLong();
+  private final AtomicLong vacuumedPages = new AtomicLong();
+  private volatile long freePages;
+
+  public ConversationSweeper(ConversationStore store, ConversationCache cache, SqliteDatabase db, long ttlMs,
+                             int batchSize, long intervalMs, int vacuumPages) {
+    if (ttlMs < 1 || batchSize < 1 || intervalMs < 1) {
+      throw new IllegalArgumentException("ttlMs, batchSize and intervalMs must be positive");
+    }
+    this.store = store;
+    this.cache = cache;
+    this.db = db;
+    this.ttlMs = ttlMs;
+    this.batchSize = batchSize;
+    this.vacuumPages = vacuumPages;
+    this.incremental = vacuumPages > 0 && autoVacuumMode(db) == AUTO_VACUUM_INCREMENTAL;
+    if (vacuumPages > 0 && !incremental) {
+      System.out.println("[INFO] " + db.path() + " does not use incremental auto_vacuum, DB_VACUUM_PAGES has no " +
+          "effect until the bot is stopped and run once with " + Main.ENABLE_INCREMENTAL_VACUUM);
+    }
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "conversation-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleWithFixedDelay(this::sweepQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  public static void enableIncrementalVacuum(SqliteDatabase db) {
+    if (autoVacuumMode(db) == AUTO_VACUUM_INCREMENTAL) {
+      System.out.println("[INFO] " + db.path() + " already uses incremental auto_vacuum");
+      return;
+    }
+    try {
+      db.maintenance(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          System.out.println("[INFO] Switching " + db.path() + " to incremental auto_vacuum, rebuilding the file");
+          st.execute("PRAGMA auto_vacuum=INCREMENTAL");
+          st.execute("VACUUM");
+        }
+        return null;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to enable incremental vacuum", e);
+    }
+    System.out.println("[INFO] " + db.path() + " now uses incremental auto_vacuum");
+  }
+
+  private static int autoVacuumMode(SqliteDatabase db) {
+    try {
+      return db.read(conn -> {
+        try (Statement st = conn.connection().createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA auto_vacuum")) {
+          return rs.next() ? rs.getInt(1) : 0;
+        }
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB auto_vacuum check failed", e);
+    }
+  }
+
+  public int sweep() {
+    long idleBefore = System.currentTimeMillis() - ttlMs;
+    int total = 0;
+    int batch;
+    do {
+      batch = store.expireIdle(idleBefore, batchSize, cache::evictExpired);
+      total += batch;
+      expired.addAndGet(batch);
+    } while (batch == batchSize);
+    sweeps.incrementAndGet();
+    if (incremental) {
+      vacuum();
+    }
+    if (total > 0) {
+      System.out.println("[INFO] Expired " + total + " idle conversation(s)");
+    }
+    return total;
+  }
+
+  private void vacuum() {
+    try {
+      freePages = db.transaction(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          long pages = Math.min(freelistCount(st), vacuumPages);
+          for (long i = 0; i < pages; i++) {
+            st.execute("PRAGMA incremental_vacuum(1)");
+          }
+          vacuumedPages.addAndGet(pages);
+          return freelistCount(st);
+        }
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB incremental vacuum failed", e);
+    }
+  }
+
+  private static long freelistCount(Statement st) throws SQLException {
+    try (ResultSet rs = st.executeQuery("PRAGMA freelist_count")) {
+      return rs.next() ? rs.getLong(1) : 0L;
+    }
+  }
+
+  public long expired() {
+    return expired.get();
+  }
+
+  public long sweeps() {
+    return sweeps.get();
+  }
+
+  public long vacuumedPages() {
+    return vacuumedPages.get();
+  }
+
+  public long freePages() {
+    return freePages;
+  }
+
+  public String describe() {
+    return "expired=" + expired() + " sweeps=" + sweeps() + " vacuumed_pages=" + vacuumedPages() +
+        " free_pages=" + freePages();
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    try {
+      scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sweepQuietly() {
+    try {
+      sweep();
+    } catch (Exception e) {
+      System.err.println("[WARN] Conversation sweep failed: " + e.getMessage());
+    }
+  }
+}
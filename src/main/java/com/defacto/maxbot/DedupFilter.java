@@ -0,0 +1,243 @@
+package com.defacto.maxbot;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DedupFilter {
+  private static final String INSERT_KEY =
+      "INSERT OR IGNORE INTO processed_updates(key, seen_at) VALUES(?, ?)";
+  private static final String DELETE_EXPIRED = "DELETE FROM processed_updates WHERE seen_at < ?";
+  private static final String SELECT_RECENT = "SELECT key FROM processed_updates WHERE seen_at >= ?";
+
+  private final long windowMillis;
+  private final int maxEntries;
+  private final GroupCommitWriter writer;
+  private long[] current;
+  private long[] previous;
+  private int currentSize;
+  private long currentStartedAt;
+  private final Set<Long> inProgress = new HashSet<>();
+
+  private final AtomicLong checked = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong earlyRotations = new AtomicLong();
+
+  public DedupFilter(long windowMillis, int maxEntries) {
+    this(windowMillis, maxEntries, null, null);
+  }
+
+  public DedupFilter(long windowMillis, int maxEntries, SqliteDatabase db, GroupCommitWriter writer) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+    this.windowMillis = windowMillis;
+    this.maxEntries = maxEntries;
+    this.writer = db == null ? null : writer;
+    int slots = Integer.highestOneBit(Math.max(2, maxEntries * 2 - 1)) << 1;
+    this.current = new long[slots];
+    this.previous = new long[slots];
+    this.currentStartedAt = System.currentTimeMillis();
+    if (this.writer != null) {
+      load(db);
+    }
+  }
+
+  public static long keyOf(Update update) {
+    if (update instanceof Update.MessageCreated created && created.message() != null) {
+      String mid = created.message().mid();
+      return mid.isEmpty() ? 0 : hash('m', mid);
+    }
+    if (update instanceof Update.MessageCallback callback) {
+      String id = callback.callbackId();
+      return id.isEmpty() ? 0 : hash('c', id);
+    }
+    return 0;
+  }
+
+  public boolean claim(Update update) {
+    long key = keyOf(update);
+    if (key == 0) {
+      return true;
+    }
+    checked.incrementAndGet();
+    synchronized (this) {
+      rotateIfNeeded(System.currentTimeMillis());
+      if (contains(previous, key) || contains(current, key) || !inProgress.add(key)) {
+        duplicates.incrementAndGet();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void finish(Update update, boolean handled) {
+    long key = keyOf(update);
+    if (key == 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      inProgress.remove(key);
+      if (!handled) {
+        return;
+      }
+      rotateIfNeeded(now);
+      insert(key);
+    }
+    if (writer != null) {
+      writer.submit(conn -> {
+        PreparedStatement ps = conn.prepare(INSERT_KEY);
+        ps.setLong(1, key);
+        ps.setLong(2, now);
+        ps.executeUpdate();
+      }).exceptionally(e -> {
+        System.err.println("[WARN] Dedup key write failed: " + e.getMessage());
+        return null;
+      });
+    }
+  }
+
+  public long checked() {
+    return checked.get();
+  }
+
+  public long duplicates() {
+    return duplicates.get();
+  }
+
+  public synchronized int size() {
+    return currentSize + count(previous);
+  }
+
+  public String describe() {
+    return "checked=" + checked() +
+        " duplicates=" + duplicates() +
+        " early_rotations=" + earlyRotations.get();
+  }
+
+  private void load(SqliteDatabase db) {
+    long since = System.currentTimeMillis() - windowMillis;
+    try {
+      db.write(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          st.execute("CREATE TABLE IF NOT EXISTS processed_updates (" +
+              "key INTEGER PRIMARY KEY," +
+              "seen_at INTEGER NOT NULL" +
+              ")");
+          st.execute("CREATE INDEX IF NOT EXISTS idx_processed_updates_seen_at ON processed_updates(seen_at)");
+        }
+        PreparedStatement delete = conn.prepare(DELETE_EXPIRED);
+        delete.setLong(1, since);
+        delete.executeUpdate();
+        return null;
+      });
+      db.read(conn -> {
+        PreparedStatement ps = conn.prepare(SELECT_RECENT);
+        ps.setLong(1, since);
+        try (ResultSet rs = ps.executeQuery()) {
+          synchronized (this) {
+            while (rs.next()) {
+              long key = rs.getLong(1);
+              if (key != 0 && !contains(current, key)) {
+                if (currentSize >= maxEntries) {
+                  rotate(System.currentTimeMillis());
+                }
+                insert(key);
+              }
+            }
+          }
+        }
+        return null;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to load dedup keys", e);
+    }
+  }
+
+  private void rotateIfNeeded(long now) {
+    if (now - currentStartedAt >= windowMillis) {
+      rotate(now);
+      if (writer != null) {
+        long expiredBefore = now - windowMillis;
+        writer.submit(conn -> {
+          PreparedStatement ps = conn.prepare(DELETE_EXPIRED);
+          ps.setLong(1, expiredBefore);
+          ps.executeUpdate();
+        }).exceptionally(e -> {
+          System.err.println("[WARN] Dedup key sweep failed: " + e.getMessage());
+          return null;
+        });
+      }
+    } else if (currentSize >= maxEntries) {
+      earlyRotations.incrementAndGet();
+      rotate(now);
+    }
+  }
+
+  private void rotate(long now) {
+    long[] recycled = previous;
+    Arrays.fill(recycled, 0);
+    previous = current;
+    current = recycled;
+    currentSize = 0;
+    currentStartedAt = now;
+  }
+
+  private void insert(long key) {
+    int mask = current.length - 1;
+    int i = (int) mix(key) & mask;
+    while (current[i] != 0) {
+      if (current[i] == key) {
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    current[i] = key;
+    currentSize++;
+  }
+
+  private static boolean contains(long[] table, long key) {
+    int mask = table.length - 1;
+    int i = (int) mix(key) & mask;
+    while (table[i] != 0) {
+      if (table[i] == key) {
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  private static int count(long[] table) {
+    int n = 0;
+    for (long k : table) {
+      if (k != 0) n++;
+    }
+    return n;
+  }
+
+  private static long hash(char kind, String id) {
+    long h = (0xcbf29ce484222325L ^ kind) * 0x100000001b3L;
+    for (int i = 0; i < id.length(); i++) {
+      h ^= id.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h = mix(h);
+    return h == 0 ? 1 : h;
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
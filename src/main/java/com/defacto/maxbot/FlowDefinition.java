@@ -0,0 +1,81 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record FlowDefinition(
+    @JsonProperty("start") String start,
+    @JsonProperty("menu_commands") List<String> menuCommands,
+    @JsonProperty("contact") Contact contact,
+    @JsonProperty("lead_confirm") String leadConfirm,
+    @JsonProperty("footers") Map<String, List<List<String>>> footers,
+    @JsonProperty("screens") Map<String, ScreenDef> screens,
+    @JsonProperty("states") Map<String, StateDef> states,
+    @JsonProperty("topics") Map<String, List<String>> topics,
+    @JsonProperty("details") List<Detail> details) {
+
+  private static final String RESOURCE = "/flow.json";
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record Contact(@JsonProperty("commands") List<String> commands,
+                        @JsonProperty("topic") String topic,
+                        @JsonProperty("next") String next) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record ScreenDef(@JsonProperty("text") String text,
+                          @JsonProperty("buttons") List<List<String>> buttons,
+                          @JsonProperty("footer") String footer,
+                          @JsonProperty("format") String format,
+                          @JsonProperty("operator_link") String operatorLink) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record StateDef(@JsonProperty("screen") String screen,
+                         @JsonProperty("enter_screen") String enterScreen,
+                         @JsonProperty("options") List<OptionDef> options,
+                         @JsonProperty("input") InputDef input) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record OptionDef(@JsonProperty("label") String label,
+                          @JsonProperty("topic") String topic,
+                          @JsonProperty("set") Map<String, String> set,
+                          @JsonProperty("store") String store,
+                          @JsonProperty("next") String next,
+                          @JsonProperty("submit") boolean submit) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record InputDef(@JsonProperty("key") String key,
+                         @JsonProperty("field") String field,
+                         @JsonProperty("validate") String validate,
+                         @JsonProperty("next") String next,
+                         @JsonProperty("invalid") String invalid) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public record Detail(@JsonProperty("key") String key,
+                       @JsonProperty("label") String label) {
+  }
+
+  public static FlowDefinition load(ObjectMapper mapper, String path) throws IOException {
+    if (path != null && !path.isBlank()) {
+      return mapper.readValue(new File(path), FlowDefinition.class);
+    }
+    try (InputStream in = FlowDefinition.class.getResourceAsStream(RESOURCE)) {
+      if (in == null) {
+        throw new IOException("Missing classpath resource " + RESOURCE);
+      }
+      return mapper.readValue(in, FlowDefinition.class);
+    }
+  }
+}
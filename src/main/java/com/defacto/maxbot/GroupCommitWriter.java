@@ -0,0 +1,142 @@
+package com.defacto.maxbot;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class GroupCommitWriter implements AutoCloseable {
+  @FunctionalInterface
+  public interface Op {
+    void apply(SqliteDatabase.PooledConnection conn) throws SQLException;
+  }
+
+  private final SqliteDatabase db;
+  private final long maxDelayNanos;
+  private final int maxRows;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Thread thread;
+  private final AtomicLong commits = new AtomicLong();
+  private final AtomicLong rows = new AtomicLong();
+  private volatile boolean running = true;
+
+  public GroupCommitWriter(SqliteDatabase db, long maxDelayMs, int maxRows) {
+    if (maxRows < 1) {
+      throw new IllegalArgumentException("maxRows must be positive");
+    }
+    this.db = db;
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMs));
+    this.maxRows = maxRows;
+    this.thread = new Thread(this::run, "db-group-commit");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  public CompletableFuture<Void> submit(Op op) {
+    Pending p = new Pending(op);
+    if (!running) {
+      p.future.completeExceptionally(new IllegalStateException("Writer is closed"));
+      return p.future;
+    }
+    queue.add(p);
+    if (!running && queue.remove(p)) {
+      p.future.completeExceptionally(new IllegalStateException("Writer is closed"));
+    }
+    return p.future;
+  }
+
+  public int queueDepth() {
+    return queue.size();
+  }
+
+  public long commits() {
+    return commits.get();
+  }
+
+  public long rows() {
+    return rows.get();
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    List<Pending> rest = new ArrayList<>();
+    while (queue.drainTo(rest) > 0) {
+      commit(rest);
+      rest.clear();
+    }
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>(maxRows);
+    while (running) {
+      try {
+        Pending first = queue.take();
+        batch.add(first);
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxRows) {
+          long wait = deadline - System.nanoTime();
+          Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        if (!running) {
+          break;
+        }
+      }
+      if (!batch.isEmpty()) {
+        commit(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      commit(batch);
+    }
+  }
+
+  private void commit(List<Pending> batch) {
+    try {
+      db.transaction(conn -> {
+        for (Pending p : batch) {
+          p.op.apply(conn);
+        }
+        return null;
+      });
+      commits.incrementAndGet();
+      rows.addAndGet(batch.size());
+      for (Pending p : batch) {
+        p.future.complete(null);
+      }
+    } catch (Exception batchError) {
+      if (batch.size() == 1) {
+        batch.get(0).future.completeExceptionally(batchError);
+        return;
+      }
+      for (Pending p : batch) {
+        commit(List.of(p));
+      }
+    }
+  }
+
+  private static final class Pending {
+    final Op op;
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    Pending(Op op) {
+      this.op = op;
+    }
+  }
+}
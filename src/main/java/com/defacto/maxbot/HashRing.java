@@ -0,0 +1,82 @@
+package com.defacto.maxbot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+public final class HashRing {
+  private final List<String> nodes;
+  private final long[] points;
+  private final String[] owners;
+
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("virtualNodes must be positive");
+    }
+    this.nodes = List.copyOf(new TreeSet<>(nodes));
+    int size = this.nodes.size() * virtualNodes;
+    long[] hashes = new long[size];
+    String[] names = new String[size];
+    int n = 0;
+    for (String node : this.nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        hashes[n] = hash(node + "#" + i);
+        names[n] = node;
+        n++;
+      }
+    }
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> {
+      int c = Long.compare(hashes[a], hashes[b]);
+      return c != 0 ? c : names[a].compareTo(names[b]);
+    });
+    this.points = new long[size];
+    this.owners = new String[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = hashes[order[i]];
+      owners[i] = names[order[i]];
+    }
+  }
+
+  public String owner(long userId) {
+    if (points.length == 0) {
+      return null;
+    }
+    int i = Arrays.binarySearch(points, mix(userId));
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return owners[i == points.length ? 0 : i];
+  }
+
+  public List<String> nodes() {
+    return nodes;
+  }
+
+  public boolean contains(String node) {
+    return nodes.contains(node);
+  }
+
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,310 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InboundJournal implements AutoCloseable {
+  private static final String INSERT_ENTRY =
+      "INSERT INTO inbound_journal(id, payload, received_at) VALUES(?, ?, ?)";
+  private static final String DELETE_ENTRY = "DELETE FROM inbound_journal WHERE id = ?";
+  private static final String SELECT_PAGE =
+      "SELECT id, payload, attempts FROM inbound_journal WHERE id > ? ORDER BY id LIMIT ?";
+  private static final String COUNT_ATTEMPT = "UPDATE inbound_journal SET attempts = attempts + 1 WHERE id = ?";
+  private static final String PARK_ENTRY =
+      "INSERT OR REPLACE INTO inbound_dead_letter(id, payload, received_at, attempts, parked_at) " +
+          "SELECT id, payload, received_at, attempts, ? FROM inbound_journal WHERE id = ?";
+  private static final int REPLAY_PAGE = 500;
+  private static final int COMPACT_BATCH = 1000;
+  static final int MAX_REPLAY_ATTEMPTS = 3;
+
+  public record Appended(long id, CompletableFuture<Void> written) {
+  }
+
+  private final SqliteDatabase db;
+  private final GroupCommitWriter writer;
+  private final ObjectWriter updateWriter;
+  private final ObjectReader updateReader;
+  private final AtomicLong nextId = new AtomicLong();
+  private final ConcurrentLinkedQueue<Long> done = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService compactor;
+
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong compacted = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong parked = new AtomicLong();
+
+  public InboundJournal(SqliteDatabase db, GroupCommitWriter writer, ObjectMapper mapper, long compactIntervalMs) {
+    this.db = db;
+    this.writer = writer;
+    this.updateWriter = mapper.writerFor(Update.class);
+    this.updateReader = mapper.readerFor(Update.class);
+    init();
+    this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "journal-compactor");
+      t.setDaemon(true);
+      return t;
+    });
+    compactor.scheduleWithFixedDelay(this::compactQuietly, compactIntervalMs, compactIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void init() {
+    try {
+      long maxId = db.write(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          st.execute("CREATE TABLE IF NOT EXISTS inbound_journal (" +
+              "id INTEGER PRIMARY KEY," +
+              "payload BLOB NOT NULL," +
+              "received_at INTEGER NOT NULL," +
+              "attempts INTEGER NOT NULL DEFAULT 0" +
+              ")");
+          if (!hasAttemptsColumn(st)) {
+            st.execute("ALTER TABLE inbound_journal ADD COLUMN attempts INTEGER NOT NULL DEFAULT 0");
+          }
+          st.execute("CREATE TABLE IF NOT EXISTS inbound_dead_letter (" +
+              "id INTEGER PRIMARY KEY," +
+              "payload BLOB NOT NULL," +
+              "received_at INTEGER NOT NULL," +
+              "attempts INTEGER NOT NULL," +
+              "parked_at INTEGER NOT NULL" +
+              ")");
+          try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(id), 0) FROM inbound_journal")) {
+            return rs.next() ? rs.getLong(1) : 0L;
+          }
+        }
+      });
+      nextId.set(maxId);
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to init inbound journal", e);
+    }
+  }
+
+  private static boolean hasAttemptsColumn(Statement st) throws SQLException {
+    try (ResultSet rs = st.executeQuery("PRAGMA table_info(inbound_journal)")) {
+      while (rs.next()) {
+        if ("attempts".equals(rs.getString("name"))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public Appended append(Update update) {
+    long id = nextId.incrementAndGet();
+    byte[] payload;
+    try {
+      payload = updateWriter.writeValueAsBytes(update);
+    } catch (JsonProcessingException e) {
+      return new Appended(id, CompletableFuture.failedFuture(e));
+    }
+    long receivedAt = System.currentTimeMillis();
+    appended.incrementAndGet();
+    return new Appended(id, writer.submit(conn -> {
+      PreparedStatement ps = conn.prepare(INSERT_ENTRY);
+      ps.setLong(1, id);
+      ps.setBytes(2, payload);
+      ps.setLong(3, receivedAt);
+      ps.executeUpdate();
+    }));
+  }
+
+  public CompletableFuture<Void> dispatch(UpdateDispatcher dispatcher, Update update, List<CompletableFuture<Void>> written) {
+    Appended entry = append(update);
+    written.add(entry.written());
+    CompletableFuture<Void> processed = dispatcher.dispatch(update);
+    trackDone(entry, processed);
+    return processed;
+  }
+
+  public void trackDone(Appended entry, CompletableFuture<Void> processed) {
+    processed.thenCombine(entry.written(), (a, b) -> null)
+        .thenRun(() -> markDone(entry.id()));
+  }
+
+  public void markDone(long id) {
+    done.add(id);
+  }
+
+  public static void awaitWritten(List<CompletableFuture<Void>> written) throws IOException {
+    try {
+      CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])).join();
+    } catch (CompletionException e) {
+      throw new IOException("Inbound journal write failed", e.getCause());
+    }
+  }
+
+  public int replay(UpdateDispatcher dispatcher) {
+    List<CompletableFuture<Void>> processed = new ArrayList<>();
+    long after = 0;
+    while (true) {
+      List<Long> ids = new ArrayList<>();
+      List<byte[]> payloads = new ArrayList<>();
+      List<Integer> attempts = new ArrayList<>();
+      long cursor = after;
+      try {
+        db.read(conn -> {
+          PreparedStatement ps = conn.prepare(SELECT_PAGE);
+          ps.setLong(1, cursor);
+          ps.setInt(2, REPLAY_PAGE);
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+              ids.add(rs.getLong(1));
+              payloads.add(rs.getBytes(2));
+              attempts.add(rs.getInt(3));
+            }
+          }
+          return null;
+        });
+      } catch (SQLException e) {
+        throw new RuntimeException("DB journal replay failed", e);
+      }
+      if (ids.isEmpty()) {
+        break;
+      }
+      List<Long> exhausted = new ArrayList<>();
+      for (int i = 0; i < ids.size(); i++) {
+        if (attempts.get(i) >= MAX_REPLAY_ATTEMPTS) {
+          exhausted.add(ids.get(i));
+        }
+      }
+      countAttempts(ids, exhausted);
+      for (int i = 0; i < ids.size(); i++) {
+        long id = ids.get(i);
+        if (exhausted.contains(id)) {
+          System.err.println("[WARN] Parking journal entry " + id + " in inbound_dead_letter after " +
+              attempts.get(i) + " failed replay(s)");
+          continue;
+        }
+        Update update;
+        try {
+          update = updateReader.readValue(payloads.get(i));
+        } catch (IOException e) {
+          System.err.println("[WARN] Dropping unreadable journal entry " + id + ": " + e.getMessage());
+          markDone(id);
+          continue;
+        }
+        int attempt = attempts.get(i) + 1;
+        CompletableFuture<Void> future = dispatcher.dispatch(update);
+        future.whenComplete((r, e) -> {
+          if (e == null) {
+            markDone(id);
+          } else {
+            System.err.println("[WARN] Journal entry " + id + " failed on replay " + attempt + " of " +
+                MAX_REPLAY_ATTEMPTS + ", keeping it for the next start: " + e);
+          }
+        });
+        processed.add(future);
+        replayed.incrementAndGet();
+      }
+      after = ids.get(ids.size() - 1);
+    }
+    CompletableFuture.allOf(processed.toArray(new CompletableFuture<?>[0])).handle((r, e) -> null).join();
+    compactQuietly();
+    return processed.size();
+  }
+
+  private void countAttempts(List<Long> ids, List<Long> exhausted) {
+    long now = System.currentTimeMillis();
+    try {
+      writer.submit(conn -> {
+        PreparedStatement park = conn.prepare(PARK_ENTRY);
+        PreparedStatement delete = conn.prepare(DELETE_ENTRY);
+        PreparedStatement count = conn.prepare(COUNT_ATTEMPT);
+        for (long id : ids) {
+          if (exhausted.contains(id)) {
+            park.setLong(1, now);
+            park.setLong(2, id);
+            park.executeUpdate();
+            delete.setLong(1, id);
+            delete.executeUpdate();
+          } else {
+            count.setLong(1, id);
+            count.executeUpdate();
+          }
+        }
+      }).join();
+      parked.addAndGet(exhausted.size());
+    } catch (CompletionException e) {
+      throw new RuntimeException("DB journal replay failed", e.getCause());
+    }
+  }
+
+  public void compact() {
+    List<Long> batch = new ArrayList<>();
+    Long id;
+    while (batch.size() < COMPACT_BATCH && (id = done.poll()) != null) {
+      batch.add(id);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      writer.submit(conn -> {
+        PreparedStatement ps = conn.prepare(DELETE_ENTRY);
+        for (long doneId : batch) {
+          ps.setLong(1, doneId);
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }).join();
+      compacted.addAndGet(batch.size());
+    } catch (CompletionException e) {
+      done.addAll(batch);
+      throw new RuntimeException("DB journal compaction failed", e.getCause());
+    }
+  }
+
+  public int awaitingCompaction() {
+    return done.size();
+  }
+
+  public long parked() {
+    return parked.get();
+  }
+
+  public String describe() {
+    return "appended=" + appended.get() +
+        " replayed=" + replayed.get() +
+        " compacted=" + compacted.get() +
+        " parked=" + parked() +
+        " awaiting_compaction=" + awaitingCompaction();
+  }
+
+  @Override
+  public void close() {
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    compactQuietly();
+  }
+
+  private void compactQuietly() {
+    try {
+      while (!done.isEmpty()) {
+        compact();
+      }
+    } catch (Exception e) {
+      System.err.println("[WARN] Journal compaction failed: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.defacto.maxbot;
+
+public final class Labels {
+  private Labels() {}
+
+  public static String normalize(String s) {
+    return strip(s == null ? "" : s.trim().toLowerCase());
+  }
+
+  public static String clean(String s) {
+    return strip(s == null ? "" : s.trim());
+  }
+
+  public static String truncate(String s, int maxChars) {
+    if (s.length() <= maxChars) {
+      return s;
+    }
+    int end = Character.isHighSurrogate(s.charAt(maxChars - 1)) ? maxChars - 1 : maxChars;
+    return s.substring(0, end);
+  }
+
+  public static int digitCount(String s) {
+    int n = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (ch >= '0' && ch <= '9') n++;
+    }
+    return n;
+  }
+
+  private static String strip(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    boolean space = false;
+    int i = 0;
+    while (i < s.length()) {
+      int cp = s.codePointAt(i);
+      i += Character.charCount(cp);
+      if (cp == 0xFE0F || cp == 0x200D || Character.getType(cp) == Character.OTHER_SYMBOL) {
+        continue;
+      }
+      if (isSpace(cp)) {
+        space = true;
+        continue;
+      }
+      if (space && sb.length() > 0) {
+        sb.append(' ');
+      }
+      space = false;
+      sb.appendCodePoint(cp);
+    }
+    return sb.toString();
+  }
+
+  private static boolean isSpace(int cp) {
+    return cp == ' ' || cp == '\t' || cp == '\n' || cp == 0x0B || cp == '\f' || cp == '\r';
+  }
+}
@@ -0,0 +1,53 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LeadExport {
+  private static final String USAGE = "Usage: java -cp maxbot.jar com.defacto.maxbot.LeadExport " +
+      "[--format=csv|ndjson] [--topic=PREFIX] [--from=YYYY-MM-DD] [--to=YYYY-MM-DD] [--after=ID] [--out=FILE]";
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> params = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+      params.put(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+    Config config = Config.fromEnv();
+    if (!new File(config.dbPath).exists()) {
+      System.err.println("[WARN] Database " + config.dbPath + " does not exist, set DB_PATH");
+      System.exit(1);
+    }
+    ZoneId zone = ZoneId.systemDefault();
+    LeadExporter.Query query;
+    try {
+      query = LeadExporter.Query.parse(params, zone);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+    String out = params.get("out");
+    try (SqliteDatabase db = new SqliteDatabase(config.dbPath, 1);
+         OutputStream os = new BufferedOutputStream(out == null
+             ? new FileOutputStream(FileDescriptor.out)
+             : new FileOutputStream(out), 1 << 16)) {
+      long rows = new LeadExporter(db, new ObjectMapper(), zone).export(query, os);
+      os.flush();
+      System.err.println("[INFO] Exported " + rows + " lead(s)");
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class LeadExporter {
+  private static final int PAGE_SIZE = 500;
+  private static final String SELECT_ID_RANGE =
+      "SELECT MIN(id), MAX(id) FROM leads WHERE created_at >= ? AND created_at < ?";
+  private static final String SELECT_PAGE =
+      "SELECT id, user_id, topic, data, phone, time_pref, created_at FROM leads " +
+          "WHERE id > ? AND id <= ? AND created_at >= ? AND created_at < ? " +
+          "AND (? IS NULL OR topic LIKE ? ESCAPE '\\') " +
+          "ORDER BY id LIMIT ?";
+  private static final String CSV_HEADER = "id,created_at,user_id,topic,phone,time_pref,data\r\n";
+  private static final Pattern PLAIN_NUMBER = Pattern.compile("[+-]?[0-9][0-9 ()-]*");
+  private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+  public enum Format {
+    CSV("text/csv; charset=utf-8", "csv"),
+    NDJSON("application/x-ndjson", "ndjson");
+
+    public final String contentType;
+    public final String extension;
+
+    Format(String contentType, String extension) {
+      this.contentType = contentType;
+      this.extension = extension;
+    }
+
+    public static Format parse(String raw) {
+      return switch (raw == null ? "" : raw.trim().toLowerCase()) {
+        case "", "csv" -> CSV;
+        case "ndjson", "jsonl" -> NDJSON;
+        default -> throw new IllegalArgumentException("Unknown export format: " + raw);
+      };
+    }
+  }
+
+  public record Query(Format format, String topic, long fromMillis, long toMillis, long afterId) {
+    public static Query parse(Map<String, String> params, ZoneId zone) {
+      Format format = Format.parse(params.get("format"));
+      String topic = params.get("topic");
+      long from = parseTime(params.get("from"), zone, false, Long.MIN_VALUE);
+      long to = parseTime(params.get("to"), zone, true, Long.MAX_VALUE);
+      long after;
+      try {
+        String raw = params.get("after");
+        after = raw == null || raw.isBlank() ? 0 : Long.parseLong(raw.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("after must be a lead id");
+      }
+      return new Query(format, topic == null || topic.isBlank() ? null : topic.trim(), from, to, after);
+    }
+
+    private static long parseTime(String raw, ZoneId zone, boolean endOfDay, long def) {
+      if (raw == null || raw.isBlank()) {
+        return def;
+      }
+      String value = raw.trim();
+      try {
+        if (value.length() == 10) {
+          LocalDate date = LocalDate.parse(value);
+          return (endOfDay ? date.plusDays(1) : date).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+      } catch (DateTimeParseException e) {
+        throw new IllegalArgumentException("Dates must be YYYY-MM-DD or ISO-8601 with offset: " + raw);
+      }
+    }
+  }
+
+  private record Lead(long id, long userId, String topic, String data, String phone, String timePref,
+                      long createdAt) {
+  }
+
+  private final SqliteDatabase db;
+  private final ObjectMapper mapper;
+  private final ZoneId zone;
+  private final DateTimeFormatter timestamps;
+
+  public LeadExporter(SqliteDatabase db, ObjectMapper mapper, ZoneId zone) {
+    this.db = db;
+    this.mapper = mapper;
+    this.zone = zone;
+    this.timestamps = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(zone);
+  }
+
+  public HttpHandler handler(String token) {
+    byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+    return exchange -> {
+      try (exchange) {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+          exchange.sendResponseHeaders(405, -1);
+          return;
+        }
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !MessageDigest.isEqual(expected, auth.getBytes(StandardCharsets.UTF_8))) {
+          exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+          exchange.sendResponseHeaders(401, -1);
+          return;
+        }
+        Query query;
+        try {
+          query = Query.parse(queryParams(exchange.getRequestURI()), zone);
+        } catch (IllegalArgumentException e) {
+          byte[] body = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+          exchange.sendResponseHeaders(400, body.length);
+          try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+          }
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", query.format().contentType);
+        exchange.getResponseHeaders().set("Content-Disposition",
+            "attachment; filename=\"leads." + query.format().extension + "\"");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = exchange.getResponseBody()) {
+          long rows = export(query, os);
+          System.out.println("[INFO] Exported " + rows + " lead(s) to " + exchange.getRemoteAddress());
+        } catch (IOException e) {
+          System.err.println("[WARN] Lead export to " + exchange.getRemoteAddress() + " failed: " + e.getMessage());
+        }
+      }
+    };
+  }
+
+  public long export(Query query, OutputStream out) throws IOException {
+    long[] range = idRange(query);
+    if (range == null) {
+      return query.format() == Format.CSV ? writeCsv(query, 0, 0, out) : 0;
+    }
+    return query.format() == Format.CSV
+        ? writeCsv(query, range[0], range[1], out)
+        : writeNdjson(query, range[0], range[1], out);
+  }
+
+  private long writeCsv(Query query, long afterId, long maxId, OutputStream out) throws IOException {
+    out.write(UTF8_BOM);
+    Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    w.write(CSV_HEADER);
+    long rows = 0;
+    List<Lead> page;
+    while (afterId < maxId && !(page = page(query, afterId, maxId)).isEmpty()) {
+      for (Lead lead : page) {
+        w.write(Long.toString(lead.id()));
+        w.write(',');
+        w.write(timestamps.format(Instant.ofEpochMilli(lead.createdAt())));
+        w.write(',');
+        w.write(Long.toString(lead.userId()));
+        w.write(',');
+        writeCsvField(w, lead.topic());
+        w.write(',');
+        writeCsvField(w, lead.phone());
+        w.write(',');
+        writeCsvField(w, lead.timePref());
+        w.write(',');
+        writeCsvField(w, lead.data());
+        w.write("\r\n");
+      }
+      rows += page.size();
+      afterId = page.get(page.size() - 1).id();
+      w.flush();
+      if (page.size() < PAGE_SIZE) {
+        break;
+      }
+    }
+    w.flush();
+    return rows;
+  }
+
+  private long writeNdjson(Query query, long afterId, long maxId, OutputStream out) throws IOException {
+    JsonGenerator gen = mapper.getFactory().createGenerator(out);
+    gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    gen.setRootValueSeparator(null);
+    long rows = 0;
+    List<Lead> page;
+    while (afterId < maxId && !(page = page(query, afterId, maxId)).isEmpty()) {
+      for (Lead lead : page) {
+        gen.writeStartObject();
+        gen.writeNumberField("id", lead.id());
+        gen.writeStringField("created_at", timestamps.format(Instant.ofEpochMilli(lead.createdAt())));
+        gen.writeNumberField("user_id", lead.userId());
+        gen.writeStringField("topic", lead.topic());
+        gen.writeStringField("phone", lead.phone());
+        gen.writeStringField("time_pref", lead.timePref());
+        gen.writeFieldName("data");
+        writeData(gen, lead.data());
+        gen.writeEndObject();
+        gen.writeRaw('\n');
+      }
+      rows += page.size();
+      afterId = page.get(page.size() - 1).id();
+      gen.flush();
+      if (page.size() < PAGE_SIZE) {
+        break;
+      }
+    }
+    gen.close();
+    return rows;
+  }
+
+  private void writeData(JsonGenerator gen, String data) throws IOException {
+    JsonNode node = null;
+    if (data != null && !data.isBlank()) {
+      try {
+        node = mapper.readTree(data);
+      } catch (IOException e) {
+        gen.writeString(data);
+        return;
+      }
+    }
+    if (node == null) {
+      gen.writeStartObject();
+      gen.writeEndObject();
+    } else {
+      gen.writeTree(node);
+    }
+  }
+
+  private long[] idRange(Query query) throws IOException {
+    if (query.fromMillis() == Long.MIN_VALUE && query.toMillis() == Long.MAX_VALUE) {
+      return new long[]{query.afterId(), Long.MAX_VALUE};
+    }
+    try {
+      return db.read(conn -> {
+        PreparedStatement ps = conn.prepare(SELECT_ID_RANGE);
+        ps.setLong(1, query.fromMillis());
+        ps.setLong(2, query.toMillis());
+        try (ResultSet rs = ps.executeQuery()) {
+          if (!rs.next() || rs.getObject(1) == null) {
+            return null;
+          }
+          return new long[]{Math.max(query.afterId(), rs.getLong(1) - 1), rs.getLong(2)};
+        }
+      });
+    } catch (SQLException e) {
+      throw new IOException("DB lead export failed", e);
+    }
+  }
+
+  private List<Lead> page(Query query, long afterId, long maxId) throws IOException {
+    String topicPattern = query.topic() == null ? null : escapeLike(query.topic()) + "%";
+    try {
+      return db.read(conn -> {
+        PreparedStatement ps = conn.prepare(SELECT_PAGE);
+        ps.setLong(1, afterId);
+        ps.setLong(2, maxId);
+        ps.setLong(3, query.fromMillis());
+        ps.setLong(4, query.toMillis());
+        ps.setString(5, topicPattern);
+        ps.setString(6, topicPattern);
+        ps.setInt(7, PAGE_SIZE);
+        List<Lead> leads = new ArrayList<>(PAGE_SIZE);
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            leads.add(new Lead(rs.getLong("id"), rs.getLong("user_id"), safe(rs.getString("topic")),
+                rs.getString("data"), safe(rs.getString("phone")), safe(rs.getString("time_pref")),
+                rs.getLong("created_at")));
+          }
+        }
+        return leads;
+      });
+    } catch (SQLException e) {
+      throw new IOException("DB lead export failed", e);
+    }
+  }
+
+  static void writeCsvField(Writer w, String value) throws IOException {
+    if (value == null || value.isEmpty()) {
+      return;
+    }
+    char first = value.charAt(0);
+    boolean formula = (first == '=' || first == '+' || first == '-' || first == '@' || first == '\t' || first == '\r') &&
+        !PLAIN_NUMBER.matcher(value).matches();
+    boolean quote = formula;
+    for (int i = 0; i < value.length() && !quote; i++) {
+      char c = value.charAt(i);
+      quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+    if (!quote) {
+      w.write(value);
+      return;
+    }
+    w.write('"');
+    if (formula) {
+      w.write('\'');
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"') {
+        w.write('"');
+      }
+      w.write(c);
+    }
+    w.write('"');
+  }
+
+  private static Map<String, String> queryParams(URI uri) {
+    Map<String, String> params = new HashMap<>();
+    String raw = uri.getRawQuery();
+    if (raw == null || raw.isEmpty()) {
+      return params;
+    }
+    for (String pair : raw.split("&")) {
+      int eq = pair.indexOf('=');
+      String key = eq < 0 ? pair : pair.substring(0, eq);
+      String value = eq < 0 ? "" : pair.substring(eq + 1);
+      params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+    }
+    return params;
+  }
+
+  private static String escapeLike(String s) {
+    return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
+  private static String safe(String s) {
+    return s == null ? "" : s;
+  }
+}
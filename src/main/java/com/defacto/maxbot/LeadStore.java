@@ -0,0 +1,121 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+public class LeadStore {
+  private static final String INSERT_LEAD =
+      "INSERT INTO leads(user_id, topic, data, phone, time_pref, created_at) VALUES(?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_OUTBOX =
+      "INSERT INTO outbox(lead_id, recipient_id, body, attempts, next_attempt_at, created_at) " +
+          "VALUES(last_insert_rowid(), ?, ?, 0, ?, ?)";
+
+  private final SqliteDatabase db;
+  private final GroupCommitWriter writer;
+  private final ObjectMapper mapper;
+  private final Metrics.Histogram saveLeadLatency;
+
+  public LeadStore(SqliteDatabase db, GroupCommitWriter writer, ObjectMapper mapper) {
+    this(db, writer, mapper, new Metrics());
+  }
+
+  public LeadStore(SqliteDatabase db, GroupCommitWriter writer, ObjectMapper mapper, Metrics metrics) {
+    this.db = db;
+    this.writer = writer;
+    this.mapper = mapper;
+    this.saveLeadLatency = ConversationStore.operationLatency(metrics, "save_lead");
+    init();
+  }
+
+  private void init() {
+    try {
+      db.write(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          st.execute("CREATE TABLE IF NOT EXISTS leads (" +
+              "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+              "user_id INTEGER NOT NULL," +
+              "topic TEXT," +
+              "data TEXT," +
+              "phone TEXT," +
+              "time_pref TEXT," +
+              "created_at INTEGER" +
+              ")");
+          st.execute("CREATE INDEX IF NOT EXISTS idx_leads_created_at ON leads(created_at)");
+          st.execute("CREATE TABLE IF NOT EXISTS outbox (" +
+              "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+              "lead_id INTEGER," +
+              "recipient_id INTEGER NOT NULL," +
+              "body BLOB NOT NULL," +
+              "attempts INTEGER NOT NULL," +
+              "next_attempt_at INTEGER NOT NULL," +
+              "created_at INTEGER NOT NULL" +
+              ")");
+          st.execute("CREATE INDEX IF NOT EXISTS idx_outbox_next_attempt_at ON outbox(next_attempt_at)");
+          st.execute("CREATE TABLE IF NOT EXISTS outbox_dead_letter (" +
+              "id INTEGER PRIMARY KEY," +
+              "lead_id INTEGER," +
+              "recipient_id INTEGER NOT NULL," +
+              "body BLOB NOT NULL," +
+              "attempts INTEGER NOT NULL," +
+              "created_at INTEGER NOT NULL," +
+              "parked_at INTEGER NOT NULL" +
+              ")");
+        }
+        return null;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to init DB", e);
+    }
+  }
+
+  public void saveLead(Conversation c, long notifyUserId, byte[] notification) {
+    try {
+      saveLeadAsync(c, notifyUserId, notification).join();
+    } catch (CompletionException e) {
+      throw new RuntimeException("DB lead insert failed", e.getCause());
+    }
+  }
+
+  public CompletableFuture<Void> saveLeadAsync(Conversation c, long notifyUserId, byte[] notification) {
+    long userId = c.userId;
+    String topic = c.topic;
+    String data = serializeData(c);
+    String phone = c.phone;
+    String timePref = c.timePref;
+    long createdAt = Instant.now().toEpochMilli();
+    long start = System.nanoTime();
+    CompletableFuture<Void> written = writer.submit(conn -> {
+      PreparedStatement ps = conn.prepare(INSERT_LEAD);
+      ps.setLong(1, userId);
+      ps.setString(2, topic);
+      ps.setString(3, data);
+      ps.setString(4, phone);
+      ps.setString(5, timePref);
+      ps.setLong(6, createdAt);
+      ps.executeUpdate();
+      PreparedStatement outbox = conn.prepare(INSERT_OUTBOX);
+      outbox.setLong(1, notifyUserId);
+      outbox.setBytes(2, notification);
+      outbox.setLong(3, createdAt);
+      outbox.setLong(4, createdAt);
+      outbox.executeUpdate();
+    });
+    written.whenComplete((r, e) -> saveLeadLatency.observeSince(start));
+    return written;
+  }
+
+  private String serializeData(Conversation c) {
+    try {
+      return mapper.writeValueAsString(c.data);
+    } catch (JsonProcessingException e) {
+      return "{}";
+    }
+  }
+}
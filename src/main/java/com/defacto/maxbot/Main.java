@@ -1,102 +1,274 @@
 package com.defacto.maxbot;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class Main {
+  private static final long STATS_INTERVAL_SECONDS = 60;
+  private static final String METRICS_PATH = "/metrics";
+  private static final String LEADS_PATH = "/leads";
+  private static final String BROADCASTS_PATH = "/broadcasts";
+  private static final int ADMIN_THREADS = 2;
+  static final String ENABLE_INCREMENTAL_VACUUM = "--enable-incremental-vacuum";
+
   public static void main(String[] args) throws Exception {
     ObjectMapper mapper = new ObjectMapper();
     Config config = Config.fromEnv();
+    if (args.length > 0) {
+      runMaintenance(args[0], config);
+      return;
+    }
     config.validate();
 
-    ConversationStore store = new ConversationStore(config.dbPath, mapper);
-    MaxApiClient client = new MaxApiClient(config.apiBase, config.accessToken, mapper);
-    UpdateProcessor processor = new UpdateProcessor(client, store, config, mapper);
+    Metrics metrics = new Metrics();
+    SqliteDatabase db = new SqliteDatabase(config.dbPath, config.dbReaders);
+    GroupCommitWriter writer = new GroupCommitWriter(db, config.dbCommitIntervalMs, config.dbCommitMaxRows);
+    Cluster cluster = config.clusterNodes.isBlank() ? null
+        : new Cluster(config.clusterSelf, Cluster.parseNodes(config.clusterNodes), config.clusterVirtualNodes,
+        config.clusterHeartbeatMs, config.clusterFailureThreshold, config.webhookSecret, mapper);
+    ConversationStore localStore = ConversationStore.create(config, db, writer, mapper, metrics);
+    ConversationStore store = cluster == null ? localStore : new ClusterConversationStore(localStore, cluster);
+    LeadStore leads = new LeadStore(db, writer, mapper, metrics);
+    ConversationCache cache = new ConversationCache(
+        store, leads, config.cacheSize, ConversationCache.Durability.parse(config.cacheMode), config.cacheFlushDelayMs);
+    if (cluster != null) {
+      cluster.onRingChange(ring -> cache.evictUnless(cluster::isLocal));
+    }
+    InboundJournal journal = new InboundJournal(db, writer, mapper, config.journalCompactIntervalMs);
+    ConversationSweeper sweeper = config.conversationTtlDays > 0
+        ? new ConversationSweeper(store, cache, db, TimeUnit.DAYS.toMillis(config.conversationTtlDays),
+        config.conversationSweepBatchSize, config.conversationSweepIntervalMs, config.dbVacuumPages)
+        : null;
+    MaxApiClient client = new MaxApiClient(
+        config.apiBase, config.accessToken, mapper, config.apiMaxRequests, config.apiMaxRequestsPerHost, metrics);
+    OutboundQueue outbound = new OutboundQueue(client, config.outboundRate, config.outboundBurst,
+        config.outboundChatIntervalMs, config.outboundMaxAttempts, config.outboundMaxInFlight, metrics);
+    OutboxDispatcher outbox = new OutboxDispatcher(db, writer, outbound, config.outboxBatchSize,
+        config.outboxPollIntervalMs, config.outboxMaxAttempts);
+    if (cluster != null && !config.adminToken.isBlank()) {
+      System.err.println("[WARN] Broadcasts are disabled with CLUSTER_NODES: each node only sees its own conversations");
+    }
+    Broadcaster broadcaster = "sqlite".equals(config.storeBackend) && cluster == null
+        ? new Broadcaster(db, client, outbound, mapper, config.broadcastRate, config.broadcastMaxInFlight)
+        : null;
+    DedupFilter dedup = config.dedupPersistent
+        ? new DedupFilter(TimeUnit.SECONDS.toMillis(config.dedupWindowSeconds), config.dedupMaxEntries, db, writer)
+        : new DedupFilter(TimeUnit.SECONDS.toMillis(config.dedupWindowSeconds), config.dedupMaxEntries);
+    FlowDefinition flowDefinition = FlowDefinition.load(mapper, config.flowPath);
+    ConversationFlow flow = ConversationFlow.compile(flowDefinition, new Screens(mapper, config, flowDefinition));
+    UpdateProcessor processor = new UpdateProcessor(client, outbound, cache, dedup, flow, outbox, metrics, config, mapper);
+    Supplier<String> sharedStats = () -> "Outbound " + outbound.describe() +
+        "; Outbox " + outbox.describe() +
+        "; Cache " + cache.describe() +
+        "; Store " + store.describe() +
+        "; Journal " + journal.describe() +
+        "; Dedup " + dedup.describe() +
+        (broadcaster == null ? "" : "; Broadcast " + broadcaster.describe()) +
+        "; DB commits=" + writer.commits() + " rows=" + writer.rows() + " queued=" + writer.queueDepth();
+
+    LeadExporter exporter = new LeadExporter(db, mapper, ZoneId.systemDefault());
+
+    UpdateDispatcher dispatcher = new UpdateDispatcher(processor, config.workers, config.workerQueueCapacity, metrics);
+    List<Runnable> ingress = new CopyOnWriteArrayList<>();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (Runnable stop : ingress) {
+        stopQuietly("ingress", stop);
+      }
+      stopQuietly("dispatcher", dispatcher::close);
+      if (broadcaster != null) {
+        stopQuietly("broadcaster", broadcaster::close);
+      }
+      stopQuietly("outbox", outbox::close);
+      stopQuietly("outbound queue", outbound::close);
+      if (sweeper != null) {
+        stopQuietly("sweeper", sweeper::close);
+      }
+      stopQuietly("cache", cache::close);
+      stopQuietly("journal", journal::close);
+      stopQuietly("store", store::close);
+      stopQuietly("writer", writer::close);
+    }, "shutdown"));
+    registerGauges(metrics, dispatcher, outbound, outbox, cache, journal, dedup, writer, client);
+    if (broadcaster != null) {
+      registerBroadcastMetrics(metrics, broadcaster);
+    }
+    if (sweeper != null) {
+      metrics.counter("maxbot_conversations_expired_total", "Idle conversations removed by the TTL sweeper",
+          sweeper::expired);
+      metrics.gauge("maxbot_db_free_pages", "Free SQLite pages left after the last incremental vacuum",
+          sweeper::freePages);
+    }
+    int replayed = journal.replay(dispatcher);
+    if (replayed > 0) {
+      System.out.println("[INFO] Replayed " + replayed + " update(s) from the inbound journal");
+    }
 
     if ("webhook".equals(config.mode)) {
+      WebhookServer server = new WebhookServer(config.port, config.webhookSecret, new UpdateStreamReader(mapper),
+          dispatcher, journal, cluster, config.webhookThreads, config.webhookBacklog);
+      if (cluster != null) {
+        server.addInlineContext(Cluster.PING_PATH, cluster.pingHandler());
+        server.addContext(Cluster.HANDOFF_PATH, cluster.handoffHandler(cache, localStore));
+        registerClusterMetrics(metrics, cluster);
+      }
+      metrics.gauge("maxbot_webhook_http_queued", "Webhook requests waiting for an HTTP thread", server::httpQueued);
+      metrics.counter("maxbot_webhook_overloaded_total", "Requests answered 503 because the HTTP queue was full",
+          server::overloaded);
+      HttpServer admin = startAdminServer(config, metrics, exporter, broadcaster);
+      if (cluster != null && admin != null && !config.adminToken.isBlank()) {
+        System.out.println("[INFO] " + LEADS_PATH + " exports only leads stored on this node, query every node of " +
+            "the cluster to collect all of them");
+      }
+      if (cluster != null) {
+        cluster.start();
+        ingress.add(cluster::close);
+        System.out.println("[INFO] Cluster node " + cluster.self() + " ring " + cluster.ring().nodes());
+      }
+      server.start();
+      ingress.add(server::stop);
+      if (admin != null) {
+        ingress.add(() -> admin.stop(0));
+      }
+      System.out.println("Webhook server started on port " + config.port);
       client.subscribeWebhook(config.webhookUrl, config.webhookSecret, "message_created,message_callback,bot_started");
-      startWebhookServer(config, processor);
+      startStatsReporter(() -> "Webhook " + server.describe() +
+          (cluster == null ? "" : "; Cluster " + cluster.describe()) +
+          "; Dispatcher " + dispatcher.describe() +
+          "; " + sharedStats.get());
       return;
     }
 
-    runPollingLoop(client, processor);
-  }
-
-  private static void runPollingLoop(MaxApiClient client, UpdateProcessor processor) {
-    Long marker = null;
-    while (true) {
-      try {
-        JsonNode resp = client.getUpdates(marker, 30, 50, "message_created,message_callback,bot_started");
-        if (resp.has("updates")) {
-          for (JsonNode upd : resp.get("updates")) {
-            processor.handleUpdate(upd);
-          }
-        }
-        if (resp.has("marker")) {
-          marker = resp.get("marker").asLong();
-        }
-      } catch (Exception e) {
-        System.err.println("Polling error: " + e.getMessage());
-        sleep(Duration.ofSeconds(2));
-      }
+    PollingLoop poller = new PollingLoop(client, dispatcher, journal, config.pollMaxInFlight,
+        config.pollCatchupLimit, config.pollCatchupInFlight, metrics);
+    metrics.gauge("maxbot_poll_batches_in_flight", "Polled batches still being processed", poller::batchesInFlight);
+    metrics.gauge("maxbot_poll_backlog_updates", "Polled updates not yet processed", poller::backlog);
+    metrics.gauge("maxbot_poll_lag_seconds", "Age of the newest update in the last polled batch", poller::lagSeconds);
+    metrics.gauge("maxbot_poll_catching_up", "1 while polling drains a backlog with large batches",
+        () -> poller.catchingUp() ? 1 : 0);
+    metrics.counter("maxbot_poll_catchups_total", "Times polling switched to catch-up mode", poller::catchups);
+    metrics.counter("maxbot_poll_errors_total", "Failed getUpdates calls", poller::errors);
+    HttpServer admin = startAdminServer(config, metrics, exporter, broadcaster);
+    ingress.add(poller::stop);
+    if (admin != null) {
+      ingress.add(() -> admin.stop(0));
     }
+    startStatsReporter(() -> "Dispatcher " + dispatcher.describe() +
+        " batches_in_flight=" + poller.batchesInFlight() +
+        " poll_backlog=" + poller.backlog() +
+        " poll_lag_s=" + Math.round(poller.lagSeconds()) +
+        (poller.catchingUp() ? " catching_up" : "") +
+        "; API running=" + client.runningCalls() + " queued=" + client.queuedCalls() +
+        "; " + sharedStats.get());
+    poller.run();
   }
 
-  private static void startWebhookServer(Config config, UpdateProcessor processor) throws IOException {
-    HttpServer server = HttpServer.create(new InetSocketAddress(config.port), 0);
-    server.createContext("/webhook", exchange -> handleWebhook(exchange, config, processor));
-    server.setExecutor(null);
-    server.start();
-    System.out.println("Webhook server started on port " + config.port);
-  }
-
-  private static void handleWebhook(HttpExchange exchange, Config config, UpdateProcessor processor) throws IOException {
-    if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
-      exchange.sendResponseHeaders(405, -1);
-      return;
+  private static void runMaintenance(String command, Config config) {
+    if (!ENABLE_INCREMENTAL_VACUUM.equals(command)) {
+      throw new IllegalArgumentException("Unknown command: " + command + ", expected " + ENABLE_INCREMENTAL_VACUUM);
     }
-    if (!config.webhookSecret.isBlank()) {
-      String header = exchange.getRequestHeaders().getFirst("X-Max-Bot-Api-Secret");
-      if (header == null || !header.equals(config.webhookSecret)) {
-        exchange.sendResponseHeaders(403, -1);
-        return;
-      }
+    try (SqliteDatabase db = new SqliteDatabase(config.dbPath, 1)) {
+      ConversationSweeper.enableIncrementalVacuum(db);
     }
+  }
 
-    String body;
-    try (InputStream is = exchange.getRequestBody()) {
-      body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-    }
-    try {
-      processor.handleWebhookPayload(body);
-      byte[] ok = "OK".getBytes(StandardCharsets.UTF_8);
-      exchange.sendResponseHeaders(200, ok.length);
-      try (OutputStream os = exchange.getResponseBody()) {
-        os.write(ok);
+  private static HttpServer startAdminServer(Config config, Metrics metrics, LeadExporter exporter,
+                                             Broadcaster broadcaster) throws IOException {
+    if (config.adminPort == 0) {
+      if (!config.adminToken.isBlank()) {
+        System.err.println("[WARN] ADMIN_TOKEN is set but ADMIN_PORT=0, " + LEADS_PATH + " and " + BROADCASTS_PATH +
+            " are disabled");
       }
-    } catch (Exception e) {
-      byte[] err = "ERROR".getBytes(StandardCharsets.UTF_8);
-      exchange.sendResponseHeaders(500, err.length);
-      try (OutputStream os = exchange.getResponseBody()) {
-        os.write(err);
+      return null;
+    }
+    HttpServer admin = HttpServer.create(new InetSocketAddress(config.adminPort), 0);
+    admin.createContext(METRICS_PATH, metrics.handler());
+    if (!config.adminToken.isBlank()) {
+      admin.createContext(LEADS_PATH, exporter.handler(config.adminToken));
+      if (broadcaster != null) {
+        admin.createContext(BROADCASTS_PATH, broadcaster.handler(config.adminToken));
       }
     }
+    admin.setExecutor(Executors.newFixedThreadPool(ADMIN_THREADS, r -> {
+      Thread t = new Thread(r, "admin-http");
+      t.setDaemon(true);
+      return t;
+    }));
+    admin.start();
+    System.out.println("Admin server started on port " + config.adminPort);
+    return admin;
   }
 
-  private static void sleep(Duration d) {
+  private static void stopQuietly(String name, Runnable step) {
     try {
-      Thread.sleep(d.toMillis());
-    } catch (InterruptedException ignored) {
-      Thread.currentThread().interrupt();
+      step.run();
+    } catch (RuntimeException e) {
+      System.err.println("[WARN] Shutdown of " + name + " failed: " + e.getMessage());
     }
   }
+
+  private static void registerGauges(Metrics metrics, UpdateDispatcher dispatcher, OutboundQueue outbound,
+                                     OutboxDispatcher outbox, ConversationCache cache, InboundJournal journal,
+                                     DedupFilter dedup, GroupCommitWriter writer, MaxApiClient client) {
+    metrics.gauge("maxbot_dispatcher_queued", "Updates waiting for a worker", dispatcher::queueDepth);
+    metrics.gauge("maxbot_outbound_queued", "Messages waiting in the outbound queue", outbound::queueDepth);
+    metrics.gauge("maxbot_outbox_pending", "Operator notifications not yet delivered", outbox::pending);
+    metrics.gauge("maxbot_db_writer_queued", "Writes waiting for the group commit thread", writer::queueDepth);
+    metrics.gauge("maxbot_cache_dirty_entries", "Cached conversations not yet flushed", cache::dirtyEntries);
+    metrics.gauge("maxbot_journal_awaiting_compaction", "Processed journal entries not yet deleted",
+        journal::awaitingCompaction);
+    metrics.counter("maxbot_journal_parked_total", "Journal entries moved to inbound_dead_letter after failed replays",
+        journal::parked);
+    metrics.gauge("maxbot_api_calls", "Max API calls in the HTTP client", client::queuedCalls, "state", "queued");
+    metrics.gauge("maxbot_api_calls", "Max API calls in the HTTP client", client::runningCalls, "state", "running");
+    metrics.counter("maxbot_outbound_sent_total", "Messages delivered by the outbound queue", outbound::sent);
+    metrics.counter("maxbot_outbound_failed_total", "Messages dropped after all outbound attempts", outbound::failed);
+    metrics.counter("maxbot_outbox_delivered_total", "Operator notifications delivered from the outbox",
+        outbox::delivered);
+    metrics.counter("maxbot_outbox_parked_total", "Operator notifications moved to outbox_dead_letter",
+        outbox::parked);
+    metrics.counter("maxbot_dedup_duplicates_total", "Duplicate updates skipped", dedup::duplicates);
+    metrics.counter("maxbot_db_commits_total", "Group commits executed", writer::commits);
+  }
+
+  private static void registerBroadcastMetrics(Metrics metrics, Broadcaster broadcaster) {
+    metrics.gauge("maxbot_broadcast_active", "1 while a broadcast is being sent", () -> broadcaster.active() ? 1 : 0);
+    metrics.counter("maxbot_broadcast_messages_total", "Broadcast messages by outcome", broadcaster::sent,
+        "result", "sent");
+    metrics.counter("maxbot_broadcast_messages_total", "Broadcast messages by outcome", broadcaster::failed,
+        "result", "failed");
+  }
+
+  private static void registerClusterMetrics(Metrics metrics, Cluster cluster) {
+    metrics.gauge("maxbot_cluster_nodes", "Live nodes in the consistent hash ring", cluster::liveNodes);
+    metrics.counter("maxbot_cluster_ring_changes_total", "Ring rebuilds after a node joined or left",
+        cluster::ringChanges);
+    metrics.counter("maxbot_cluster_forwarded_total", "Updates forwarded to the owning node", cluster::forwarded);
+    metrics.counter("maxbot_cluster_forward_failures_total", "Updates that could not be forwarded",
+        cluster::forwardFailures);
+    metrics.counter("maxbot_cluster_handoffs_total", "Conversations moved between nodes after a rebalance",
+        cluster::handoffsIn, "direction", "in");
+    metrics.counter("maxbot_cluster_handoffs_total", "Conversations moved between nodes after a rebalance",
+        cluster::handoffsOut, "direction", "out");
+  }
+
+  private static void startStatsReporter(Supplier<String> stats) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "stats-reporter");
+      t.setDaemon(true);
+      return t;
+    });
+    scheduler.scheduleAtFixedRate(
+        () -> System.out.println("[INFO] " + stats.get()),
+        STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
 }
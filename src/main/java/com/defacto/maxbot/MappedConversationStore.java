@@ -0,0 +1,336 @@
+package com.defacto.maxbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+public class MappedConversationStore implements ConversationStore {
+  private static final int MAGIC = 0x4d584356;
+  private static final int VERSION = 3;
+  private static final int HEADER_SIZE = 64;
+  private static final int SLOT_HEADER_SIZE = 24;
+  private static final int USER_ID_OFFSET = 0;
+  private static final int UPDATED_AT_OFFSET = 8;
+  private static final int LENGTH_OFFSET = 16;
+  private static final int CHECKSUM_OFFSET = 20;
+  private static final int STRIPES = 64;
+  private static final int MAX_DATA_BYTES = 0xFFFF;
+
+  private final String path;
+  private final int slots;
+  private final int slotSize;
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final ConcurrentHashMap<Long, Integer> index = new ConcurrentHashMap<>();
+  private final Object[] stripes = new Object[STRIPES];
+  private final Object allocLock = new Object();
+  private final Metrics.Histogram findLatency;
+  private final Metrics.Histogram upsertLatency;
+  private int cursor;
+  private volatile int sweepCursor;
+
+  public MappedConversationStore(String path, int slots, int slotSize) {
+    this(path, slots, slotSize, new Metrics());
+  }
+
+  public MappedConversationStore(String path, int slots, int slotSize, Metrics metrics) {
+    if (slots < 1) {
+      throw new IllegalArgumentException("slots must be positive");
+    }
+    if (slotSize <= SLOT_HEADER_SIZE) {
+      throw new IllegalArgumentException("slotSize must be greater than " + SLOT_HEADER_SIZE);
+    }
+    long size = HEADER_SIZE + (long) slots * slotSize;
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Conversation map must not exceed 2 GB");
+    }
+    this.path = path;
+    this.slots = slots;
+    this.slotSize = slotSize;
+    this.findLatency = ConversationStore.operationLatency(metrics, "find");
+    this.upsertLatency = ConversationStore.operationLatency(metrics, "upsert");
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+    File file = new File(path);
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    try {
+      this.channel = FileChannel.open(file.toPath(),
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      long existing = channel.size();
+      if (existing != 0 && existing != size) {
+        channel.close();
+        throw new IllegalStateException("Conversation map " + path + " has " + existing +
+            " bytes, expected " + size + " for " + slots + " slots of " + slotSize + " bytes");
+      }
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to open conversation map " + path, e);
+    }
+    if (buffer.getInt(0) == 0) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putInt(8, slots);
+      buffer.putInt(12, slotSize);
+    } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+        buffer.getInt(8) != slots || buffer.getInt(12) != slotSize) {
+      close();
+      throw new IllegalStateException("Conversation map " + path + " was created with different settings");
+    }
+    load();
+  }
+
+  private void load() {
+    int last = -1;
+    for (int slot = 0; slot < slots; slot++) {
+      int offset = offset(slot);
+      if (buffer.getInt(offset + LENGTH_OFFSET) == 0) {
+        continue;
+      }
+      if (validPayload(offset) == null) {
+        System.err.println("[WARN] Dropping torn conversation slot " + slot + " in " + path);
+        buffer.putInt(offset + LENGTH_OFFSET, 0);
+        continue;
+      }
+      index.put(buffer.getLong(offset + USER_ID_OFFSET), slot);
+      last = slot;
+    }
+    cursor = (last + 1) % slots;
+  }
+
+  @Override
+  public Conversation findConversation(long userId) {
+    long start = System.nanoTime();
+    try {
+      Integer slot = index.get(userId);
+      if (slot == null) {
+        return null;
+      }
+      byte[] payload;
+      int offset = offset(slot);
+      synchronized (stripe(slot)) {
+        payload = buffer.getLong(offset + USER_ID_OFFSET) == userId ? validPayload(offset) : null;
+      }
+      if (payload == null) {
+        System.err.println("[WARN] Corrupt conversation slot " + slot + " for user " + userId + ": checksum mismatch");
+        return null;
+      }
+      try {
+        return decode(userId, payload);
+      } catch (IOException | IllegalArgumentException e) {
+        System.err.println("[WARN] Corrupt conversation slot " + slot + " for user " + userId + ": " + e.getMessage());
+        return null;
+      }
+    } finally {
+      findLatency.observeSince(start);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> upsertConversationAsync(Conversation c) {
+    long start = System.nanoTime();
+    try {
+      byte[] payload;
+      try {
+        payload = encode(c);
+      } catch (IllegalStateException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+      if (payload.length > slotSize - SLOT_HEADER_SIZE) {
+        return CompletableFuture.failedFuture(new IllegalStateException("Conversation of user " + c.userId +
+            " takes " + payload.length + " bytes, slot size is " + slotSize));
+      }
+      long updatedAt = Instant.now().toEpochMilli();
+      Integer slot = index.get(c.userId);
+      if (slot != null && rewrite(slot, c.userId, updatedAt, payload)) {
+        return CompletableFuture.completedFuture(null);
+      }
+      synchronized (allocLock) {
+        slot = index.get(c.userId);
+        if (slot != null && rewrite(slot, c.userId, updatedAt, payload)) {
+          return CompletableFuture.completedFuture(null);
+        }
+        slot = allocate();
+        if (slot < 0) {
+          return CompletableFuture.failedFuture(
+              new IllegalStateException("Conversation map " + path + " is full (" + slots + " slots)"));
+        }
+        write(slot, c.userId, updatedAt, payload);
+        index.put(c.userId, slot);
+        return CompletableFuture.completedFuture(null);
+      }
+    } finally {
+      upsertLatency.observeSince(start);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteConversationAsync(long userId) {
+    Integer slot = index.get(userId);
+    if (slot != null) {
+      int offset = offset(slot);
+      synchronized (stripe(slot)) {
+        if (buffer.getLong(offset + USER_ID_OFFSET) == userId && buffer.getInt(offset + LENGTH_OFFSET) > 0) {
+          buffer.putInt(offset + LENGTH_OFFSET, 0);
+          index.remove(userId, slot);
+        }
+      }
+    }
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public int expireIdle(long idleBeforeMillis, int limit, LongConsumer expired) {
+    int count = 0;
+    for (int i = 0; i < slots && count < limit; i++) {
+      int slot = (sweepCursor + i) % slots;
+      int offset = offset(slot);
+      synchronized (stripe(slot)) {
+        if (buffer.getInt(offset + LENGTH_OFFSET) > 0 &&
+            buffer.getLong(offset + UPDATED_AT_OFFSET) < idleBeforeMillis) {
+          long userId = buffer.getLong(offset + USER_ID_OFFSET);
+          buffer.putInt(offset + LENGTH_OFFSET, 0);
+          index.remove(userId, slot);
+          expired.accept(userId);
+          count++;
+        }
+      }
+      if (count == limit) {
+        sweepCursor = (slot + 1) % slots;
+      }
+    }
+    return count;
+  }
+
+  public int used() {
+    return index.size();
+  }
+
+  public int capacity() {
+    return slots;
+  }
+
+  @Override
+  public String describe() {
+    return "backend=mmap used=" + used() + "/" + capacity();
+  }
+
+  @Override
+  public void close() {
+    try {
+      if (buffer != null) {
+        buffer.force();
+      }
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("[WARN] Failed to close conversation map " + path + ": " + e.getMessage());
+    }
+  }
+
+  private int allocate() {
+    for (int i = 0; i < slots; i++) {
+      int slot = (cursor + i) % slots;
+      if (buffer.getInt(offset(slot) + LENGTH_OFFSET) == 0) {
+        cursor = (slot + 1) % slots;
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private boolean rewrite(int slot, long userId, long updatedAt, byte[] payload) {
+    int offset = offset(slot);
+    synchronized (stripe(slot)) {
+      if (buffer.getInt(offset + LENGTH_OFFSET) == 0 || buffer.getLong(offset + USER_ID_OFFSET) != userId) {
+        return false;
+      }
+      write(slot, userId, updatedAt, payload);
+      return true;
+    }
+  }
+
+  private void write(int slot, long userId, long updatedAt, byte[] payload) {
+    int offset = offset(slot);
+    synchronized (stripe(slot)) {
+      buffer.putLong(offset + USER_ID_OFFSET, userId);
+      buffer.putLong(offset + UPDATED_AT_OFFSET, updatedAt);
+      buffer.put(offset + SLOT_HEADER_SIZE, payload);
+      buffer.putInt(offset + LENGTH_OFFSET, payload.length);
+      buffer.putInt(offset + CHECKSUM_OFFSET, checksum(offset, payload));
+    }
+  }
+
+  private byte[] validPayload(int offset) {
+    int length = buffer.getInt(offset + LENGTH_OFFSET);
+    if (length <= 0 || length > slotSize - SLOT_HEADER_SIZE) {
+      return null;
+    }
+    byte[] payload = new byte[length];
+    buffer.get(offset + SLOT_HEADER_SIZE, payload);
+    return buffer.getInt(offset + CHECKSUM_OFFSET) == checksum(offset, payload) ? payload : null;
+  }
+
+  private int checksum(int offset, byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(buffer.slice(offset, CHECKSUM_OFFSET));
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  private int offset(int slot) {
+    return HEADER_SIZE + slot * slotSize;
+  }
+
+  private Object stripe(int slot) {
+    return stripes[slot % STRIPES];
+  }
+
+  private static byte[] encode(Conversation c) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(c.state);
+      out.writeUTF(c.topic);
+      out.writeUTF(c.phone);
+      out.writeUTF(c.timePref);
+      byte[] data = ConversationData.encode(c.data);
+      if (data.length > MAX_DATA_BYTES) {
+        throw new IllegalStateException("Data of conversation of user " + c.userId + " takes " + data.length +
+            " bytes, the mmap store allows at most " + MAX_DATA_BYTES);
+      }
+      out.writeShort(data.length);
+      out.write(data);
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to encode conversation of user " + c.userId, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static Conversation decode(long userId, byte[] payload) throws IOException {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+      Conversation c = new Conversation(userId);
+      c.state = in.readUTF();
+      c.topic = in.readUTF();
+      c.phone = in.readUTF();
+      c.timePref = in.readUTF();
+      c.data = ConversationData.decode(in.readNBytes(in.readUnsignedShort()));
+      if (c.state.isBlank()) {
+        c.state = Conversation.START;
+      }
+      return c;
+    }
+  }
+}
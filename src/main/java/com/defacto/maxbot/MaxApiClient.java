@@ -5,29 +5,193 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import okhttp3.*;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class MaxApiClient {
+  private static final MediaType JSON = MediaType.parse("application/json");
+  private static final int DEFAULT_MAX_REQUESTS = 64;
+  private static final int DEFAULT_MAX_REQUESTS_PER_HOST = 16;
+
   private final OkHttpClient http;
   private final ObjectMapper mapper;
   private final String baseUrl;
   private final String accessToken;
+  private final UpdateStreamReader updateReader;
 
   public MaxApiClient(String baseUrl, String accessToken, ObjectMapper mapper) {
+    this(baseUrl, accessToken, mapper, DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+  }
+
+  public MaxApiClient(String baseUrl, String accessToken, ObjectMapper mapper, int maxRequests, int maxRequestsPerHost) {
+    this(baseUrl, accessToken, mapper, maxRequests, maxRequestsPerHost, new Metrics());
+  }
+
+  public MaxApiClient(String baseUrl, String accessToken, ObjectMapper mapper, int maxRequests, int maxRequestsPerHost,
+                      Metrics metrics) {
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(maxRequests);
+    dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
     this.http = new OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .connectionPool(new ConnectionPool(Math.max(5, maxRequestsPerHost), 5, TimeUnit.MINUTES))
         .connectTimeout(Duration.ofSeconds(10))
         .readTimeout(Duration.ofSeconds(40))
         .writeTimeout(Duration.ofSeconds(10))
         .callTimeout(Duration.ofSeconds(45))
+        .addInterceptor(chain -> measure(chain, metrics))
         .build();
     this.mapper = mapper;
     this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
     this.accessToken = accessToken;
+    this.updateReader = new UpdateStreamReader(mapper);
   }
 
   public JsonNode getUpdates(Long marker, int timeoutSeconds, int limit, String typesCsv) throws IOException {
+    try (Response resp = http.newCall(updatesRequest(marker, timeoutSeconds, limit, typesCsv)).execute()) {
+      return readUpdates(resp);
+    }
+  }
+
+  public Long getUpdates(Long marker, int timeoutSeconds, int limit, String typesCsv,
+                         UpdateStreamReader.UpdateSink sink) throws IOException {
+    try (Response resp = http.newCall(updatesRequest(marker, timeoutSeconds, limit, typesCsv)).execute()) {
+      if (!resp.isSuccessful()) {
+        throw failure(resp, "GET /updates failed: " + resp.code());
+      }
+      if (resp.body() == null) {
+        return null;
+      }
+      try (InputStream in = resp.body().byteStream()) {
+        return updateReader.read(in, sink);
+      }
+    }
+  }
+
+  public CompletableFuture<JsonNode> getUpdatesAsync(Long marker, int timeoutSeconds, int limit, String typesCsv) {
+    return enqueue(updatesRequest(marker, timeoutSeconds, limit, typesCsv), this::readUpdates);
+  }
+
+  public void sendMessage(long userId, String text, List<List<Button>> buttons) throws IOException {
+    sendMessage(userId, text, buttons, null);
+  }
+
+  public void sendMessage(long userId, String text, List<List<Button>> buttons, String format) throws IOException {
+    try (Response resp = http.newCall(messageRequest(userId, text, buttons, format)).execute()) {
+      checkMessageResponse(resp);
+    }
+  }
+
+  public void sendMessage(long userId, String text) throws IOException {
+    sendMessage(userId, text, null);
+  }
+
+  public CompletableFuture<Void> sendMessageAsync(long userId, String text, List<List<Button>> buttons) {
+    return sendMessageAsync(userId, text, buttons, null);
+  }
+
+  public CompletableFuture<Void> sendMessageAsync(long userId, String text, List<List<Button>> buttons, String format) {
+    Request request;
+    try {
+      request = messageRequest(userId, text, buttons, format);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return enqueue(request, resp -> {
+      checkMessageResponse(resp);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Void> sendMessageAsync(long userId, String text) {
+    return sendMessageAsync(userId, text, null);
+  }
+
+  public CompletableFuture<Void> sendMessageAsync(long userId, byte[] jsonBody) {
+    return enqueue(post(messagesUrl(userId), RequestBody.create(jsonBody, JSON)), resp -> {
+      checkMessageResponse(resp);
+      return null;
+    });
+  }
+
+  public byte[] encodeMessage(String text, List<List<Button>> buttons, String format) throws IOException {
+    return mapper.writeValueAsBytes(MessageBuilder.textWithKeyboard(text, buttons, format));
+  }
+
+  public void answerCallback(String callbackId, String notification) throws IOException {
+    try (Response resp = http.newCall(answerRequest(callbackId, notification)).execute()) {
+      checkResponse(resp, "POST /answers");
+    }
+  }
+
+  public CompletableFuture<Void> answerCallbackAsync(String callbackId, String notification) {
+    Request request;
+    try {
+      request = answerRequest(callbackId, notification);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return enqueue(request, resp -> {
+      checkResponse(resp, "POST /answers");
+      return null;
+    });
+  }
+
+  public void subscribeWebhook(String url, String secret, String updateTypesCsv) throws IOException {
+    try (Response resp = http.newCall(subscriptionRequest(url, secret, updateTypesCsv)).execute()) {
+      checkResponse(resp, "POST /subscriptions");
+    }
+  }
+
+  public CompletableFuture<Void> subscribeWebhookAsync(String url, String secret, String updateTypesCsv) {
+    Request request;
+    try {
+      request = subscriptionRequest(url, secret, updateTypesCsv);
+    } catch (IOException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return enqueue(request, resp -> {
+      checkResponse(resp, "POST /subscriptions");
+      return null;
+    });
+  }
+
+  public int queuedCalls() {
+    return http.dispatcher().queuedCallsCount();
+  }
+
+  public int runningCalls() {
+    return http.dispatcher().runningCallsCount();
+  }
+
+  private static Response measure(Interceptor.Chain chain, Metrics metrics) throws IOException {
+    Request request = chain.request();
+    String endpoint = request.method() + " " + request.url().encodedPath();
+    long start = System.nanoTime();
+    Response resp;
+    try {
+      resp = chain.proceed(request);
+    } catch (IOException e) {
+      metrics.histogram("maxbot_api_request_seconds", "Max API request latency until response headers",
+          "endpoint", endpoint).observeSince(start);
+      metrics.counter("maxbot_api_errors_total", "Max API requests that failed or returned a non-2xx status",
+          "endpoint", endpoint, "code", "io").inc();
+      throw e;
+    }
+    metrics.histogram("maxbot_api_request_seconds", "Max API request latency until response headers",
+        "endpoint", endpoint).observeSince(start);
+    if (!resp.isSuccessful()) {
+      metrics.counter("maxbot_api_errors_total", "Max API requests that failed or returned a non-2xx status",
+          "endpoint", endpoint, "code", String.valueOf(resp.code())).inc();
+    }
+    return resp;
+  }
+
+  private Request updatesRequest(Long marker, int timeoutSeconds, int limit, String typesCsv) {
     HttpUrl.Builder url = HttpUrl.parse(baseUrl + "/updates").newBuilder()
         .addQueryParameter("timeout", String.valueOf(timeoutSeconds))
         .addQueryParameter("limit", String.valueOf(limit));
@@ -38,103 +202,101 @@ public class MaxApiClient {
       url.addQueryParameter("types", typesCsv);
     }
 
-    Request request = new Request.Builder()
+    return new Request.Builder()
         .url(url.build())
         .get()
         .header("Authorization", accessToken)
         .build();
-
-    try (Response resp = http.newCall(request).execute()) {
-      if (!resp.isSuccessful()) {
-        throw new IOException("GET /updates failed: " + resp.code());
-      }
-      String body = resp.body() == null ? "{}" : resp.body().string();
-      return mapper.readTree(body);
-    }
   }
 
-  public void sendMessage(long userId, String text, List<List<Button>> buttons) throws IOException {
-    HttpUrl url = HttpUrl.parse(baseUrl + "/messages").newBuilder()
+  private HttpUrl messagesUrl(long userId) {
+    return HttpUrl.parse(baseUrl + "/messages").newBuilder()
         .addQueryParameter("user_id", String.valueOf(userId))
         .build();
+  }
 
-    Map<String, Object> body = MessageBuilder.textWithKeyboard(text, buttons);
-    String json = mapper.writeValueAsString(body);
-
-    Request request = new Request.Builder()
-        .url(url)
-        .post(RequestBody.create(json, MediaType.parse("application/json")))
-        .header("Authorization", accessToken)
-        .build();
+  private Request messageRequest(long userId, String text, List<List<Button>> buttons, String format) throws IOException {
+    Map<String, Object> body = MessageBuilder.textWithKeyboard(text, buttons, format);
+    return post(messagesUrl(userId), mapper.writeValueAsString(body));
+  }
 
-    try (Response resp = http.newCall(request).execute()) {
-      if (!resp.isSuccessful()) {
-        String err = resp.body() == null ? "" : resp.body().string();
-        throw new IOException("POST /messages failed: " + resp.code() + " " + err);
-      }
-    }
+  private Request answerRequest(String callbackId, String notification) throws IOException {
+    HttpUrl url = HttpUrl.parse(baseUrl + "/answers").newBuilder().build();
+    Map<String, Object> payload = MessageBuilder.answerCallback(callbackId, notification);
+    return post(url, mapper.writeValueAsString(payload));
   }
 
-  public void sendMessage(long userId, String text, List<List<Button>> buttons, String format) throws IOException {
-    HttpUrl url = HttpUrl.parse(baseUrl + "/messages").newBuilder()
-        .addQueryParameter("user_id", String.valueOf(userId))
-        .build();
+  private Request subscriptionRequest(String url, String secret, String updateTypesCsv) throws IOException {
+    HttpUrl endpoint = HttpUrl.parse(baseUrl + "/subscriptions").newBuilder().build();
+    Map<String, Object> body = MessageBuilder.webhookSubscription(url, secret, updateTypesCsv);
+    return post(endpoint, mapper.writeValueAsString(body));
+  }
 
-    Map<String, Object> body = MessageBuilder.textWithKeyboard(text, buttons, format);
-    String json = mapper.writeValueAsString(body);
+  private Request post(HttpUrl url, String json) {
+    return post(url, RequestBody.create(json, JSON));
+  }
 
-    Request request = new Request.Builder()
+  private Request post(HttpUrl url, RequestBody body) {
+    return new Request.Builder()
         .url(url)
-        .post(RequestBody.create(json, MediaType.parse("application/json")))
+        .post(body)
         .header("Authorization", accessToken)
         .build();
+  }
 
-    try (Response resp = http.newCall(request).execute()) {
-      if (!resp.isSuccessful()) {
-        String err = resp.body() == null ? "" : resp.body().string();
-        throw new IOException("POST /messages failed: " + resp.code() + " " + err);
-      }
+  private JsonNode readUpdates(Response resp) throws IOException {
+    if (!resp.isSuccessful()) {
+      throw failure(resp, "GET /updates failed: " + resp.code());
     }
+    String body = resp.body() == null ? "{}" : resp.body().string();
+    return mapper.readTree(body);
   }
 
-  public void sendMessage(long userId, String text) throws IOException {
-    sendMessage(userId, text, null);
+  private void checkMessageResponse(Response resp) throws IOException {
+    if (!resp.isSuccessful()) {
+      String err = resp.body() == null ? "" : resp.body().string();
+      throw failure(resp, "POST /messages failed: " + resp.code() + " " + err);
+    }
   }
 
-  public void answerCallback(String callbackId, String notification) throws IOException {
-    HttpUrl url = HttpUrl.parse(baseUrl + "/answers").newBuilder().build();
-
-    Map<String, Object> payload = MessageBuilder.answerCallback(callbackId, notification);
-    String json = mapper.writeValueAsString(payload);
-
-    Request request = new Request.Builder()
-        .url(url)
-        .post(RequestBody.create(json, MediaType.parse("application/json")))
-        .header("Authorization", accessToken)
-        .build();
-
-    try (Response resp = http.newCall(request).execute()) {
-      if (!resp.isSuccessful()) {
-        throw new IOException("POST /answers failed: " + resp.code());
-      }
+  private void checkResponse(Response resp, String call) throws IOException {
+    if (!resp.isSuccessful()) {
+      throw failure(resp, call + " failed: " + resp.code());
     }
   }
 
-  public void subscribeWebhook(String url, String secret, String updateTypesCsv) throws IOException {
-    HttpUrl endpoint = HttpUrl.parse(baseUrl + "/subscriptions").newBuilder().build();
-    Map<String, Object> body = MessageBuilder.webhookSubscription(url, secret, updateTypesCsv);
-    String json = mapper.writeValueAsString(body);
+  private static MaxApiException failure(Response resp, String message) {
+    return new MaxApiException(message, resp.code(), MaxApiException.parseRetryAfter(resp.header("Retry-After")));
+  }
 
-    Request request = new Request.Builder()
-        .url(endpoint)
-        .post(RequestBody.create(json, MediaType.parse("application/json")))
-        .header("Authorization", accessToken)
-        .build();
+  @FunctionalInterface
+  private interface ResponseHandler<T> {
+    T handle(Response resp) throws IOException;
+  }
 
-    try (Response resp = http.newCall(request).execute()) {
-      if (!resp.isSuccessful()) {
-        throw new IOException("POST /subscriptions failed: " + resp.code());
+  private <T> CompletableFuture<T> enqueue(Request request, ResponseHandler<T> handler) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    Call call = http.newCall(request);
+    future.whenComplete((r, e) -> {
+      if (future.isCancelled()) {
+        call.cancel();
       }
-    }
+    });
+    call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call c, IOException e) {
+        future.completeExceptionally(e);
+      }
+
+      @Override
+      public void onResponse(Call c, Response resp) {
+        try (resp) {
+          future.complete(handler.handle(resp));
+        } catch (Exception e) {
+          future.completeExceptionally(e);
+        }
+      }
+    });
+    return future;
   }
 }
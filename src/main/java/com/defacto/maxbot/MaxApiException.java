@@ -0,0 +1,53 @@
+package com.defacto.maxbot;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+public class MaxApiException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int code;
+  private final long retryAfterMillis;
+
+  public MaxApiException(String message, int code, long retryAfterMillis) {
+    super(message);
+    this.code = code;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  public int code() {
+    return code;
+  }
+
+  public long retryAfterMillis() {
+    return retryAfterMillis;
+  }
+
+  public boolean isRateLimited() {
+    return code == 429;
+  }
+
+  public boolean isRetryable() {
+    return code == 429 || code == 408 || code >= 500;
+  }
+
+  public static long parseRetryAfter(String header) {
+    if (header == null || header.isBlank()) {
+      return -1;
+    }
+    String v = header.trim();
+    try {
+      return Math.max(0, Long.parseLong(v) * 1000);
+    } catch (NumberFormatException ignored) {
+    }
+    try {
+      ZonedDateTime at = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME);
+      return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+    } catch (DateTimeParseException ignored) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.defacto.maxbot;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+public class MemoryConversationStore implements ConversationStore {
+  private record Stored(Conversation conversation, long updatedAt) {
+  }
+
+  private final ConcurrentHashMap<Long, Stored> conversations = new ConcurrentHashMap<>();
+
+  @Override
+  public Conversation findConversation(long userId) {
+    Stored stored = conversations.get(userId);
+    return stored == null ? null : stored.conversation().copy();
+  }
+
+  @Override
+  public CompletableFuture<Void> upsertConversationAsync(Conversation c) {
+    conversations.put(c.userId, new Stored(c.copy(), Instant.now().toEpochMilli()));
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteConversationAsync(long userId) {
+    conversations.remove(userId);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public int expireIdle(long idleBeforeMillis, int limit, LongConsumer expired) {
+    int count = 0;
+    for (Map.Entry<Long, Stored> e : conversations.entrySet()) {
+      if (count >= limit) {
+        break;
+      }
+      if (e.getValue().updatedAt() < idleBeforeMillis && conversations.remove(e.getKey(), e.getValue())) {
+        expired.accept(e.getKey());
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public int size() {
+    return conversations.size();
+  }
+
+  @Override
+  public String describe() {
+    return "backend=memory size=" + size();
+  }
+}
@@ -0,0 +1,214 @@
+package com.defacto.maxbot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+public class Metrics {
+  private static final double[] LATENCY_BUCKETS_SECONDS = {
+      0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+  };
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+  public static final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+      value.increment();
+    }
+
+    public void add(long n) {
+      value.add(n);
+    }
+
+    public long value() {
+      return value.sum();
+    }
+  }
+
+  public static final class Histogram {
+    private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS_SECONDS.length];
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    public void observeNanos(long nanos) {
+      observe(nanos / 1e9);
+    }
+
+    public void observeSince(long startNanos) {
+      observeNanos(System.nanoTime() - startNanos);
+    }
+
+    public void observe(double seconds) {
+      for (int i = 0; i < buckets.length; i++) {
+        if (seconds <= LATENCY_BUCKETS_SECONDS[i]) {
+          buckets[i].increment();
+          break;
+        }
+      }
+      count.increment();
+      sum.add(seconds);
+    }
+
+    public long count() {
+      return count.sum();
+    }
+  }
+
+  public Counter counter(String name, String help, String... labels) {
+    return (Counter) family(name, help, "counter").children.computeIfAbsent(labelString(labels), k -> new Counter());
+  }
+
+  public Histogram histogram(String name, String help, String... labels) {
+    return (Histogram) family(name, help, "histogram").children.computeIfAbsent(labelString(labels), k -> new Histogram());
+  }
+
+  public void counter(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "counter").children.put(labelString(labels), value);
+  }
+
+  public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+    family(name, help, "gauge").children.put(labelString(labels), value);
+  }
+
+  public String scrape() {
+    StringBuilder sb = new StringBuilder(4096);
+    for (Map.Entry<String, Family> e : families.entrySet()) {
+      String name = e.getKey();
+      Family family = e.getValue();
+      sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> child : family.children.entrySet()) {
+        String labels = child.getKey();
+        Object metric = child.getValue();
+        if (metric instanceof Histogram h) {
+          writeHistogram(sb, name, labels, h);
+        } else if (metric instanceof Counter c) {
+          writeSample(sb, name, labels, c.value());
+        } else {
+          double value;
+          try {
+            value = ((DoubleSupplier) metric).getAsDouble();
+          } catch (RuntimeException ex) {
+            continue;
+          }
+          writeSample(sb, name, labels, value);
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  public HttpHandler handler() {
+    return this::handle;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    }
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, k -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+    }
+    return family;
+  }
+
+  private static void writeHistogram(StringBuilder sb, String name, String labels, Histogram h) {
+    long cumulative = 0;
+    for (int i = 0; i < LATENCY_BUCKETS_SECONDS.length; i++) {
+      cumulative += h.buckets[i].sum();
+      writeSample(sb, name + "_bucket", withLabel(labels, "le", formatDouble(LATENCY_BUCKETS_SECONDS[i])), cumulative);
+    }
+    long count = h.count.sum();
+    writeSample(sb, name + "_bucket", withLabel(labels, "le", "+Inf"), Math.max(count, cumulative));
+    writeSample(sb, name + "_sum", labels, h.sum.sum());
+    writeSample(sb, name + "_count", labels, count);
+  }
+
+  private static void writeSample(StringBuilder sb, String name, String labels, long value) {
+    sb.append(name).append(labels).append(' ').append(value).append('\n');
+  }
+
+  private static void writeSample(StringBuilder sb, String name, String labels, double value) {
+    sb.append(name).append(labels).append(' ').append(formatDouble(value)).append('\n');
+  }
+
+  private static String formatDouble(double value) {
+    if (Double.isNaN(value)) return "NaN";
+    if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+    return String.valueOf(value);
+  }
+
+  private static String withLabel(String labels, String key, String value) {
+    String pair = key + "=\"" + value + "\"";
+    return labels.isEmpty() ? "{" + pair + "}" : labels.substring(0, labels.length() - 1) + "," + pair + "}";
+  }
+
+  private static String labelString(String... labels) {
+    if (labels.length == 0) {
+      return "";
+    }
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be key/value pairs");
+    }
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) sb.append(',');
+      sb.append(labels[i]).append("=\"");
+      String value = labels[i + 1] == null ? "" : labels[i + 1];
+      for (int j = 0; j < value.length(); j++) {
+        char ch = value.charAt(j);
+        if (ch == '\\' || ch == '"') {
+          sb.append('\\').append(ch);
+        } else if (ch == '\n') {
+          sb.append("\\n");
+        } else {
+          sb.append(ch);
+        }
+      }
+      sb.append('"');
+    }
+    return sb.append('}').toString();
+  }
+
+  private static final class Family {
+    final String help;
+    final String type;
+    final Map<String, Object> children = new ConcurrentSkipListMap<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+}
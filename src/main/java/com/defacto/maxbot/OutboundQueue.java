@@ -0,0 +1,297 @@
+package com.defacto.maxbot;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutboundQueue implements AutoCloseable {
+  private static final long BACKOFF_BASE_MS = 500;
+  private static final long BACKOFF_MAX_MS = 30_000;
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final MaxApiClient client;
+  private final TokenBucket bucket;
+  private final long chatIntervalNanos;
+  private final int maxAttempts;
+  private final Semaphore inFlight;
+  private final Map<Long, Chat> chats = new HashMap<>();
+  private final DelayQueue<Chat> ready = new DelayQueue<>();
+  private final Thread sender;
+  private volatile boolean running = true;
+  private long lastSweep = System.nanoTime();
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+  private final AtomicLong latencyCount = new AtomicLong();
+  private final AtomicLong latencySumMillis = new AtomicLong();
+  private final Metrics.Histogram queueWait;
+  private final Metrics.Histogram bucketWait;
+  private final Metrics.Histogram sendLatency;
+  private final Metrics.Histogram deliveryLatency;
+  private int queued;
+
+  public OutboundQueue(MaxApiClient client, double ratePerSecond, int burst, long chatIntervalMs,
+                       int maxAttempts, int maxInFlight) {
+    this(client, ratePerSecond, burst, chatIntervalMs, maxAttempts, maxInFlight, new Metrics());
+  }
+
+  public OutboundQueue(MaxApiClient client, double ratePerSecond, int burst, long chatIntervalMs,
+                       int maxAttempts, int maxInFlight, Metrics metrics) {
+    this.client = client;
+    this.bucket = new TokenBucket(ratePerSecond, burst);
+    this.chatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(chatIntervalMs);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    this.queueWait = metrics.histogram("maxbot_outbound_queue_wait_seconds",
+        "Time from enqueue to the first send attempt of an outbound message");
+    this.bucketWait = metrics.histogram("maxbot_outbound_rate_limit_wait_seconds",
+        "Time the outbound sender waited for a token of the global rate limit");
+    this.sendLatency = metrics.histogram("maxbot_outbound_send_seconds",
+        "Duration of a single sendMessage call to the Max API");
+    this.deliveryLatency = metrics.histogram("maxbot_outbound_delivery_seconds",
+        "Time from enqueue to successful delivery of an outbound message, including retries");
+    this.sender = new Thread(this::run, "outbound-sender");
+    this.sender.setDaemon(true);
+    this.sender.start();
+  }
+
+  public CompletableFuture<Void> send(long userId, String text, List<List<Button>> buttons) throws IOException {
+    return send(userId, text, buttons, null);
+  }
+
+  public CompletableFuture<Void> send(long userId, String text, List<List<Button>> buttons, String format) throws IOException {
+    return send(userId, client.encodeMessage(text, buttons, format));
+  }
+
+  public CompletableFuture<Void> send(long userId, byte[] body) {
+    Message m = new Message(userId, body);
+    if (!running) {
+      m.future.completeExceptionally(new IllegalStateException("Outbound queue is closed"));
+      return m.future;
+    }
+    synchronized (this) {
+      Chat chat = chats.computeIfAbsent(userId, Chat::new);
+      chat.pending.add(m);
+      queued++;
+      if (!chat.active) {
+        chat.active = true;
+        chat.dueAt = Math.max(System.nanoTime(), chat.nextAllowedAt);
+        ready.add(chat);
+      }
+    }
+    return m.future;
+  }
+
+  public synchronized int queueDepth() {
+    return queued;
+  }
+
+  public long sent() {
+    return sent.get();
+  }
+
+  public long failed() {
+    return failed.get();
+  }
+
+  public long retries() {
+    return retries.get();
+  }
+
+  public long throttled() {
+    return throttled.get();
+  }
+
+  public double averageLatencyMillis() {
+    long n = latencyCount.get();
+    return n == 0 ? 0.0 : (double) latencySumMillis.get() / n;
+  }
+
+  public String describe() {
+    return "queued=" + queueDepth() +
+        " sent=" + sent() +
+        " failed=" + failed() +
+        " retries=" + retries() +
+        " throttled=" + throttled() +
+        " latency_avg_ms=" + Math.round(averageLatencyMillis());
+  }
+
+  @Override
+  public void close() {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (queueDepth() > 0 && System.nanoTime() - deadline < 0) {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    running = false;
+    sender.interrupt();
+  }
+
+  private void run() {
+    while (running) {
+      Chat chat;
+      try {
+        chat = ready.poll(1, TimeUnit.SECONDS);
+        if (System.nanoTime() - lastSweep > SWEEP_INTERVAL_NANOS) {
+          sweepIdleChats();
+          lastSweep = System.nanoTime();
+        }
+        if (chat == null) {
+          continue;
+        }
+        long waitStart = System.nanoTime();
+        bucket.acquire();
+        bucketWait.observeSince(waitStart);
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        if (!running) {
+          return;
+        }
+        continue;
+      }
+      Message m;
+      synchronized (this) {
+        m = chat.pending.peek();
+      }
+      m.attempts++;
+      long sendStart = System.nanoTime();
+      if (m.attempts == 1) {
+        queueWait.observeNanos(sendStart - m.enqueuedAt);
+      }
+      client.sendMessageAsync(m.userId, m.body).whenComplete((r, e) -> {
+        sendLatency.observeSince(sendStart);
+        onComplete(chat, m, e);
+      });
+    }
+  }
+
+  private void onComplete(Chat chat, Message m, Throwable error) {
+    inFlight.release();
+    long now = System.nanoTime();
+    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    long retryDelayMs = cause == null ? -1 : retryDelayMillis(cause, m.attempts);
+    synchronized (this) {
+      if (cause == null || retryDelayMs < 0) {
+        chat.pending.poll();
+        queued--;
+        chat.nextAllowedAt = now + chatIntervalNanos;
+      } else {
+        chat.nextAllowedAt = now + TimeUnit.MILLISECONDS.toNanos(retryDelayMs);
+      }
+      if (chat.pending.isEmpty()) {
+        chat.active = false;
+      } else {
+        chat.dueAt = chat.nextAllowedAt;
+        ready.add(chat);
+      }
+    }
+    if (cause == null) {
+      sent.incrementAndGet();
+      recordLatency(now - m.enqueuedAt);
+      m.future.complete(null);
+    } else if (retryDelayMs >= 0) {
+      retries.incrementAndGet();
+    } else {
+      failed.incrementAndGet();
+      System.err.println("[WARN] Message to user_id=" + m.userId + " failed after " + m.attempts +
+          " attempt(s): " + cause.getMessage());
+      m.future.completeExceptionally(cause);
+    }
+  }
+
+  private long retryDelayMillis(Throwable cause, int attempts) {
+    if (attempts >= maxAttempts) {
+      return -1;
+    }
+    if (cause instanceof MaxApiException api) {
+      if (api.isRateLimited()) {
+        throttled.incrementAndGet();
+        if (api.retryAfterMillis() >= 0) {
+          bucket.pauseFor(api.retryAfterMillis());
+          return api.retryAfterMillis();
+        }
+      }
+      if (!api.isRetryable()) {
+        return -1;
+      }
+      return backoffMillis(attempts);
+    }
+    return cause instanceof IOException ? backoffMillis(attempts) : -1;
+  }
+
+  private static long backoffMillis(int attempts) {
+    long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempts - 1, 16));
+    long half = ceiling / 2;
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+
+  private void recordLatency(long nanos) {
+    deliveryLatency.observeNanos(nanos);
+    latencyCount.incrementAndGet();
+    latencySumMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(nanos));
+  }
+
+  private synchronized void sweepIdleChats() {
+    long now = System.nanoTime();
+    Iterator<Chat> it = chats.values().iterator();
+    while (it.hasNext()) {
+      Chat chat = it.next();
+      if (!chat.active && now - chat.nextAllowedAt > 0) {
+        it.remove();
+      }
+    }
+  }
+
+  private static final class Message {
+    final long userId;
+    final byte[] body;
+    final long enqueuedAt = System.nanoTime();
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    int attempts;
+
+    Message(long userId, byte[] body) {
+      this.userId = userId;
+      this.body = body;
+    }
+  }
+
+  private static final class Chat implements Delayed {
+    final long userId;
+    final ArrayDeque<Message> pending = new ArrayDeque<>();
+    boolean active;
+    long nextAllowedAt;
+    volatile long dueAt;
+
+    Chat(long userId) {
+      this.userId = userId;
+      this.nextAllowedAt = System.nanoTime();
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+}
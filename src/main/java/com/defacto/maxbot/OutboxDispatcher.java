@@ -0,0 +1,238 @@
+package com.defacto.maxbot;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutboxDispatcher implements AutoCloseable {
+  private static final String SELECT_DUE =
+      "SELECT id, recipient_id, body, attempts FROM outbox WHERE next_attempt_at <= ? ORDER BY id LIMIT ?";
+  private static final String DELETE_ENTRY = "DELETE FROM outbox WHERE id = ?";
+  private static final String RESCHEDULE_ENTRY =
+      "UPDATE outbox SET attempts = ?, next_attempt_at = ? WHERE id = ?";
+  private static final String PARK_ENTRY =
+      "INSERT OR REPLACE INTO outbox_dead_letter(id, lead_id, recipient_id, body, attempts, created_at, parked_at) " +
+          "SELECT id, lead_id, recipient_id, body, ?, created_at, ? FROM outbox WHERE id = ?";
+  private static final String COUNT_PENDING = "SELECT COUNT(*) FROM outbox";
+  private static final long RETRY_BASE_MS = 5_000;
+  private static final long RETRY_MAX_MS = 600_000;
+
+  private record Entry(long id, long recipientId, byte[] body, int attempts) {
+  }
+
+  private final SqliteDatabase db;
+  private final GroupCommitWriter writer;
+  private final OutboundQueue outbound;
+  private final int batchSize;
+  private final long pollIntervalMs;
+  private final int maxAttempts;
+  private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+  private final Thread thread;
+  private final Object signal = new Object();
+  private boolean woken;
+  private volatile boolean running = true;
+
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong parked = new AtomicLong();
+
+  public OutboxDispatcher(SqliteDatabase db, GroupCommitWriter writer, OutboundQueue outbound,
+                          int batchSize, long pollIntervalMs, int maxAttempts) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.db = db;
+    this.writer = writer;
+    this.outbound = outbound;
+    this.batchSize = batchSize;
+    this.pollIntervalMs = Math.max(1, pollIntervalMs);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.thread = new Thread(this::run, "outbox-dispatcher");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  public void wake() {
+    synchronized (signal) {
+      woken = true;
+      signal.notifyAll();
+    }
+  }
+
+  public long delivered() {
+    return delivered.get();
+  }
+
+  public long failures() {
+    return failures.get();
+  }
+
+  public long parked() {
+    return parked.get();
+  }
+
+  public int inFlight() {
+    return inFlight.size();
+  }
+
+  public long pending() {
+    try {
+      return db.read(conn -> {
+        try (ResultSet rs = conn.prepare(COUNT_PENDING).executeQuery()) {
+          return rs.next() ? rs.getLong(1) : 0L;
+        }
+      });
+    } catch (SQLException e) {
+      return -1;
+    }
+  }
+
+  public String describe() {
+    return "pending=" + pending() +
+        " delivered=" + delivered() +
+        " failures=" + failures() +
+        " parked=" + parked() +
+        " in_flight=" + inFlight();
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    thread.interrupt();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    while (running) {
+      int handled;
+      try {
+        handled = deliverDue();
+      } catch (Exception e) {
+        System.err.println("[WARN] Outbox delivery failed: " + e.getMessage());
+        handled = 0;
+      }
+      if (handled >= batchSize) {
+        continue;
+      }
+      try {
+        synchronized (signal) {
+          if (!woken) {
+            signal.wait(pollIntervalMs);
+          }
+          woken = false;
+        }
+      } catch (InterruptedException e) {
+        if (!running) {
+          return;
+        }
+      }
+    }
+  }
+
+  private int deliverDue() {
+    int capacity = batchSize - inFlight.size();
+    if (capacity <= 0) {
+      return 0;
+    }
+    List<Entry> due = selectDue(System.currentTimeMillis(), capacity + inFlight.size());
+    int started = 0;
+    for (Entry entry : due) {
+      if (started >= capacity) {
+        break;
+      }
+      if (!inFlight.add(entry.id())) {
+        continue;
+      }
+      started++;
+      outbound.send(entry.recipientId(), entry.body()).whenComplete((r, e) -> complete(entry, e));
+    }
+    return started;
+  }
+
+  private void complete(Entry entry, Throwable error) {
+    CompletableFuture<Void> update;
+    if (error == null) {
+      delivered.incrementAndGet();
+      update = writer.submit(conn -> {
+        PreparedStatement delete = conn.prepare(DELETE_ENTRY);
+        delete.setLong(1, entry.id());
+        delete.executeUpdate();
+      });
+    } else {
+      failures.incrementAndGet();
+      int attempts = entry.attempts() + 1;
+      long now = System.currentTimeMillis();
+      Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+      if (attempts >= maxAttempts) {
+        parked.incrementAndGet();
+        System.err.println("[WARN] Parking outbox notification " + entry.id() + " to user_id=" + entry.recipientId() +
+            " in outbox_dead_letter after " + attempts + " failed attempt(s): " + cause.getMessage());
+        update = writer.submit(conn -> {
+          PreparedStatement park = conn.prepare(PARK_ENTRY);
+          park.setInt(1, attempts);
+          park.setLong(2, now);
+          park.setLong(3, entry.id());
+          park.executeUpdate();
+          PreparedStatement delete = conn.prepare(DELETE_ENTRY);
+          delete.setLong(1, entry.id());
+          delete.executeUpdate();
+        });
+      } else {
+        System.err.println("[WARN] Outbox notification " + entry.id() + " failed on attempt " + attempts + " of " +
+            maxAttempts + ", will retry: " + cause.getMessage());
+        update = writer.submit(conn -> {
+          PreparedStatement reschedule = conn.prepare(RESCHEDULE_ENTRY);
+          reschedule.setInt(1, attempts);
+          reschedule.setLong(2, now + retryDelayMillis(attempts));
+          reschedule.setLong(3, entry.id());
+          reschedule.executeUpdate();
+        });
+      }
+    }
+    update.whenComplete((r, e) -> {
+      inFlight.remove(entry.id());
+      if (e != null) {
+        System.err.println("[WARN] DB outbox update failed: " + e.getMessage());
+      }
+      wake();
+    });
+  }
+
+  private List<Entry> selectDue(long now, int limit) {
+    try {
+      return db.read(conn -> {
+        PreparedStatement ps = conn.prepare(SELECT_DUE);
+        ps.setLong(1, now);
+        ps.setInt(2, limit);
+        List<Entry> entries = new ArrayList<>();
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            entries.add(new Entry(rs.getLong(1), rs.getLong(2), rs.getBytes(3), rs.getInt(4)));
+          }
+        }
+        return entries;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB outbox read failed", e);
+    }
+  }
+
+  private static long retryDelayMillis(int attempts) {
+    long ceiling = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(attempts - 1, 16));
+    long half = ceiling / 2;
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+}
@@ -0,0 +1,217 @@
+package com.defacto.maxbot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PollingLoop {
+  private static final String UPDATE_TYPES = "message_created,message_callback,bot_started";
+  private static final int TIMEOUT_SECONDS = 30;
+  private static final int LIMIT = 50;
+  private static final long BACKOFF_BASE_MS = 500;
+  private static final long BACKOFF_MAX_MS = 30_000;
+
+  private final MaxApiClient client;
+  private final UpdateDispatcher dispatcher;
+  private final InboundJournal journal;
+  private final int maxInFlight;
+  private final int catchupLimit;
+  private final int catchupInFlight;
+  private final Metrics.Histogram catchupDuration;
+  private int batchesInFlight;
+  private volatile boolean running = true;
+  private volatile Thread thread;
+
+  private final AtomicInteger backlog = new AtomicInteger();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong catchups = new AtomicLong();
+  private volatile boolean catchingUp;
+  private volatile long catchupStartedAt;
+  private volatile long lagMillis;
+  private long catchupUpdates;
+
+  public PollingLoop(MaxApiClient client, UpdateDispatcher dispatcher, InboundJournal journal, int maxInFlight) {
+    this(client, dispatcher, journal, maxInFlight, LIMIT, maxInFlight, new Metrics());
+  }
+
+  public PollingLoop(MaxApiClient client, UpdateDispatcher dispatcher, InboundJournal journal, int maxInFlight,
+                     int catchupLimit, int catchupInFlight, Metrics metrics) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+    if (catchupLimit < LIMIT) {
+      throw new IllegalArgumentException("catchupLimit must be at least " + LIMIT);
+    }
+    if (catchupInFlight < maxInFlight) {
+      throw new IllegalArgumentException("catchupInFlight must be at least maxInFlight");
+    }
+    this.client = client;
+    this.dispatcher = dispatcher;
+    this.journal = journal;
+    this.maxInFlight = maxInFlight;
+    this.catchupLimit = catchupLimit;
+    this.catchupInFlight = catchupInFlight;
+    this.catchupDuration = metrics.histogram("maxbot_poll_catchup_seconds",
+        "Time spent draining a polling backlog before returning to long polling");
+  }
+
+  public void run() {
+    thread = Thread.currentThread();
+    Long marker = null;
+    int failures = 0;
+    while (running && !Thread.currentThread().isInterrupted()) {
+      boolean catchup = catchingUp;
+      if (!acquire(catchup ? catchupInFlight : maxInFlight)) {
+        return;
+      }
+      int limit = catchup ? catchupLimit : LIMIT;
+      List<CompletableFuture<Void>> batch = new ArrayList<>();
+      List<CompletableFuture<Void>> written = new ArrayList<>();
+      long[] newest = new long[1];
+      Long next;
+      try {
+        next = client.getUpdates(marker, catchup ? 0 : TIMEOUT_SECONDS, limit, UPDATE_TYPES, update -> {
+          newest[0] = Math.max(newest[0], update.timestamp());
+          backlog.incrementAndGet();
+          CompletableFuture<Void> processed = journal.dispatch(dispatcher, update, written);
+          processed.whenComplete((r, e) -> backlog.decrementAndGet());
+          batch.add(processed);
+        });
+      } catch (Exception e) {
+        releaseWhenDone(batch);
+        if (!running) {
+          return;
+        }
+        errors.incrementAndGet();
+        long delay = backoffMillis(e, ++failures);
+        System.err.println("Polling error: " + e.getMessage() + ", retrying in " + delay + " ms");
+        sleep(delay);
+        continue;
+      }
+      releaseWhenDone(batch);
+      try {
+        InboundJournal.awaitWritten(written);
+      } catch (IOException e) {
+        errors.incrementAndGet();
+        long delay = backoffMillis(e, ++failures);
+        System.err.println("[WARN] " + e.getMessage() + ": " + e.getCause() + ", refetching batch in " + delay + " ms");
+        sleep(delay);
+        continue;
+      }
+      failures = 0;
+      if (next != null) {
+        marker = next;
+      }
+      if (newest[0] > 0) {
+        lagMillis = Math.max(0, System.currentTimeMillis() - newest[0]);
+      } else if (!catchup) {
+        lagMillis = 0;
+      }
+      adapt(batch.size(), limit);
+    }
+  }
+
+  public void stop() {
+    running = false;
+    Thread t = thread;
+    if (t != null) {
+      t.interrupt();
+      try {
+        t.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public synchronized int batchesInFlight() {
+    return batchesInFlight;
+  }
+
+  public int backlog() {
+    return backlog.get();
+  }
+
+  public double lagSeconds() {
+    return lagMillis / 1000.0;
+  }
+
+  public boolean catchingUp() {
+    return catchingUp;
+  }
+
+  public long catchups() {
+    return catchups.get();
+  }
+
+  public long errors() {
+    return errors.get();
+  }
+
+  private void adapt(int received, int limit) {
+    if (received >= limit) {
+      if (!catchingUp) {
+        catchingUp = true;
+        catchupStartedAt = System.nanoTime();
+        catchupUpdates = 0;
+        catchups.incrementAndGet();
+        System.out.println("[INFO] Polling backlog detected, catching up with limit=" + catchupLimit +
+            " in_flight=" + catchupInFlight);
+      }
+      catchupUpdates += received;
+      return;
+    }
+    if (catchingUp) {
+      catchingUp = false;
+      catchupUpdates += received;
+      long elapsed = System.nanoTime() - catchupStartedAt;
+      catchupDuration.observeNanos(elapsed);
+      System.out.println("[INFO] Polling caught up: " + catchupUpdates + " update(s) in " + elapsed / 1_000_000 +
+          " ms, back to long polling");
+    }
+  }
+
+  private synchronized boolean acquire(int limit) {
+    try {
+      while (batchesInFlight >= limit) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    batchesInFlight++;
+    return true;
+  }
+
+  private synchronized void release() {
+    batchesInFlight--;
+    notifyAll();
+  }
+
+  private void releaseWhenDone(List<CompletableFuture<Void>> batch) {
+    CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> release());
+  }
+
+  private static long backoffMillis(Exception e, int failures) {
+    if (e instanceof MaxApiException api && api.isRateLimited() && api.retryAfterMillis() >= 0) {
+      return api.retryAfterMillis();
+    }
+    long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(failures - 1, 16));
+    long half = ceiling / 2;
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ignored) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
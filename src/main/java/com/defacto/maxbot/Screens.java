@@ -0,0 +1,84 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Screens {
+  public record Screen(byte[] body, byte[] fallback) {
+  }
+
+  private final ObjectMapper mapper;
+  private final Map<String, Screen> screens = new HashMap<>();
+
+  public Screens(ObjectMapper mapper, Config config, FlowDefinition flow) {
+    this.mapper = mapper;
+    String url = config.operatorChatUrl == null ? "" : config.operatorChatUrl.trim();
+    boolean hasLink = false;
+    if (!url.isBlank()) {
+      if (url.startsWith("http://") || url.startsWith("https://")) {
+        hasLink = true;
+      } else {
+        System.err.println("[WARN] OPERATOR_CHAT_URL must be http/https. Skipping link button.");
+      }
+    }
+    for (Map.Entry<String, FlowDefinition.ScreenDef> e : flow.screens().entrySet()) {
+      FlowDefinition.ScreenDef def = e.getValue();
+      List<List<Button>> rows = rows(def.buttons());
+      if (def.footer() != null) {
+        List<List<String>> footer = flow.footers() == null ? null : flow.footers().get(def.footer());
+        if (footer == null) {
+          throw new IllegalStateException("Flow screen " + e.getKey() + " uses unknown footer " + def.footer());
+        }
+        rows = rows == null ? new ArrayList<>() : rows;
+        rows.addAll(rows(footer));
+      }
+      byte[] plain = encode(def.text(), rows, def.format());
+      Screen screen = new Screen(plain, null);
+      if (hasLink && def.operatorLink() != null) {
+        List<List<Button>> linked = new ArrayList<>();
+        linked.add(List.of(Button.link(def.operatorLink(), url)));
+        if (rows != null) {
+          linked.addAll(rows);
+        }
+        screen = new Screen(encode(def.text(), linked, def.format()), plain);
+      }
+      screens.put(e.getKey(), screen);
+    }
+  }
+
+  public Screen get(String id) {
+    Screen screen = screens.get(id);
+    if (screen == null) {
+      throw new IllegalStateException("Unknown flow screen " + id);
+    }
+    return screen;
+  }
+
+  private static List<List<Button>> rows(List<List<String>> labels) {
+    if (labels == null) {
+      return null;
+    }
+    List<List<Button>> rows = new ArrayList<>(labels.size());
+    for (List<String> row : labels) {
+      List<Button> buttons = new ArrayList<>(row.size());
+      for (String label : row) {
+        buttons.add(Button.message(label));
+      }
+      rows.add(buttons);
+    }
+    return rows;
+  }
+
+  private byte[] encode(String text, List<List<Button>> buttons, String format) {
+    try {
+      return mapper.writeValueAsBytes(MessageBuilder.textWithKeyboard(text, buttons, format));
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Failed to encode screen", e);
+    }
+  }
+}
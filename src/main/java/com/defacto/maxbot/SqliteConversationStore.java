@@ -0,0 +1,227 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.sql.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongConsumer;
+
+public class SqliteConversationStore implements ConversationStore {
+  private static final String SELECT_CONVERSATION =
+      "SELECT state, topic, data, phone, time_pref FROM conversations WHERE user_id = ?";
+  private static final String UPSERT_CONVERSATION =
+      "INSERT INTO conversations(user_id, state, topic, data, phone, time_pref, updated_at) " +
+          "VALUES(?, ?, ?, ?, ?, ?, ?) " +
+          "ON CONFLICT(user_id) DO UPDATE SET " +
+          "state=excluded.state, topic=excluded.topic, data=excluded.data, " +
+          "phone=excluded.phone, time_pref=excluded.time_pref, updated_at=excluded.updated_at";
+  private static final String DELETE_CONVERSATION = "DELETE FROM conversations WHERE user_id = ?";
+  private static final String DELETE_IDLE =
+      "DELETE FROM conversations WHERE user_id IN " +
+          "(SELECT user_id FROM conversations WHERE updated_at < ? ORDER BY updated_at LIMIT ?) RETURNING user_id";
+  private static final int MIGRATION_BATCH = 500;
+  private static final String SELECT_JSON_DATA =
+      "SELECT user_id, data FROM conversations WHERE typeof(data) = 'text' LIMIT " + MIGRATION_BATCH;
+  private static final String UPDATE_DATA = "UPDATE conversations SET data = ? WHERE user_id = ?";
+
+  private final SqliteDatabase db;
+  private final GroupCommitWriter writer;
+  private final ObjectMapper mapper;
+  private final Metrics.Histogram findLatency;
+  private final Metrics.Histogram upsertLatency;
+
+  public SqliteConversationStore(SqliteDatabase db, GroupCommitWriter writer, ObjectMapper mapper) {
+    this(db, writer, mapper, new Metrics());
+  }
+
+  public SqliteConversationStore(SqliteDatabase db, GroupCommitWriter writer, ObjectMapper mapper, Metrics metrics) {
+    this.db = db;
+    this.writer = writer;
+    this.mapper = mapper;
+    this.findLatency = ConversationStore.operationLatency(metrics, "find");
+    this.upsertLatency = ConversationStore.operationLatency(metrics, "upsert");
+    init();
+  }
+
+  private void init() {
+    try {
+      db.write(conn -> {
+        try (Statement st = conn.connection().createStatement()) {
+          st.execute("CREATE TABLE IF NOT EXISTS conversations (" +
+              "user_id INTEGER PRIMARY KEY," +
+              "state TEXT NOT NULL," +
+              "topic TEXT," +
+              "data TEXT," +
+              "phone TEXT," +
+              "time_pref TEXT," +
+              "updated_at INTEGER" +
+              ")");
+          st.execute("CREATE INDEX IF NOT EXISTS idx_conversations_updated_at ON conversations(updated_at)");
+        }
+        return null;
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to init DB", e);
+    }
+    migrateJsonData();
+  }
+
+  private void migrateJsonData() {
+    long migrated = 0;
+    try {
+      int batch;
+      do {
+        batch = db.transaction(conn -> {
+          List<Long> userIds = new ArrayList<>();
+          List<byte[]> encoded = new ArrayList<>();
+          try (ResultSet rs = conn.prepare(SELECT_JSON_DATA).executeQuery()) {
+            while (rs.next()) {
+              userIds.add(rs.getLong("user_id"));
+              encoded.add(ConversationData.encode(parseJsonData(rs.getString("data"))));
+            }
+          }
+          PreparedStatement ps = conn.prepare(UPDATE_DATA);
+          for (int i = 0; i < userIds.size(); i++) {
+            ps.setBytes(1, encoded.get(i));
+            ps.setLong(2, userIds.get(i));
+            ps.executeUpdate();
+          }
+          return userIds.size();
+        });
+        migrated += batch;
+      } while (batch == MIGRATION_BATCH);
+    } catch (SQLException e) {
+      throw new RuntimeException("Failed to migrate conversation data", e);
+    }
+    if (migrated > 0) {
+      System.out.println("[INFO] Migrated " + migrated + " conversation(s) from JSON to binary data");
+    }
+  }
+
+  @Override
+  public Conversation findConversation(long userId) {
+    long start = System.nanoTime();
+    try {
+      return db.read(conn -> {
+        PreparedStatement ps = conn.prepare(SELECT_CONVERSATION);
+        ps.setLong(1, userId);
+        try (ResultSet rs = ps.executeQuery()) {
+          if (!rs.next()) {
+            return null;
+          }
+          Conversation c = new Conversation(userId);
+          c.state = parseState(rs.getString("state"));
+          c.topic = safe(rs.getString("topic"));
+          c.phone = safe(rs.getString("phone"));
+          c.timePref = safe(rs.getString("time_pref"));
+          c.data = parseData(rs.getBytes("data"));
+          return c;
+        }
+      });
+    } catch (SQLException e) {
+      throw new RuntimeException("DB read failed", e);
+    } finally {
+      findLatency.observeSince(start);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> upsertConversationAsync(Conversation c) {
+    long userId = c.userId;
+    String state = c.state;
+    String topic = c.topic;
+    byte[] data = ConversationData.encode(c.data);
+    String phone = c.phone;
+    String timePref = c.timePref;
+    long updatedAt = Instant.now().toEpochMilli();
+    long start = System.nanoTime();
+    CompletableFuture<Void> written = writer.submit(conn -> {
+      PreparedStatement ps = conn.prepare(UPSERT_CONVERSATION);
+      ps.setLong(1, userId);
+      ps.setString(2, state);
+      ps.setString(3, topic);
+      ps.setBytes(4, data);
+      ps.setString(5, phone);
+      ps.setString(6, timePref);
+      ps.setLong(7, updatedAt);
+      ps.executeUpdate();
+    });
+    written.whenComplete((r, e) -> upsertLatency.observeSince(start));
+    return written;
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteConversationAsync(long userId) {
+    return writer.submit(conn -> {
+      PreparedStatement ps = conn.prepare(DELETE_CONVERSATION);
+      ps.setLong(1, userId);
+      ps.executeUpdate();
+    });
+  }
+
+  @Override
+  public int expireIdle(long idleBeforeMillis, int limit, LongConsumer expired) {
+    List<Long> deleted = new ArrayList<>();
+    try {
+      writer.submit(conn -> {
+        PreparedStatement ps = conn.prepare(DELETE_IDLE);
+        ps.setLong(1, idleBeforeMillis);
+        ps.setInt(2, limit);
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            deleted.add(rs.getLong(1));
+          }
+        }
+      }).join();
+    } catch (CompletionException e) {
+      throw new RuntimeException("DB conversation expiry failed", e.getCause());
+    }
+    for (long userId : deleted) {
+      expired.accept(userId);
+    }
+    return deleted.size();
+  }
+
+  private String parseState(String raw) {
+    return raw == null || raw.isBlank() ? Conversation.START : raw;
+  }
+
+  private ConversationData parseData(byte[] raw) {
+    if (ConversationData.isEncoded(raw)) {
+      try {
+        return ConversationData.decode(raw);
+      } catch (IllegalArgumentException e) {
+        return new ConversationData();
+      }
+    }
+    return parseJsonData(raw == null ? null : new String(raw, StandardCharsets.UTF_8));
+  }
+
+  private ConversationData parseJsonData(String raw) {
+    ConversationData data = new ConversationData();
+    if (raw == null || raw.isBlank()) {
+      return data;
+    }
+    try {
+      Map<?, ?> map = mapper.readValue(raw, Map.class);
+      for (Map.Entry<?, ?> e : map.entrySet()) {
+        if (e.getKey() != null && e.getValue() != null) {
+          data.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+        }
+      }
+    } catch (Exception e) {
+      data.clear();
+    }
+    return data;
+  }
+
+  private String safe(String s) {
+    return s == null ? "" : s;
+  }
+}
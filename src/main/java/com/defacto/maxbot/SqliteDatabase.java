@@ -0,0 +1,179 @@
+package com.defacto.maxbot;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SqliteDatabase implements AutoCloseable {
+  private static final int BUSY_TIMEOUT_MS = 5000;
+
+  private final String dbPath;
+  private final PooledConnection writer;
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final BlockingQueue<PooledConnection> readers;
+  private final List<PooledConnection> all = new ArrayList<>();
+
+  @FunctionalInterface
+  public interface SqlWork<T> {
+    T apply(PooledConnection conn) throws SQLException;
+  }
+
+  public SqliteDatabase(String dbPath, int readerCount) {
+    if (readerCount < 1) {
+      throw new IllegalArgumentException("readerCount must be positive");
+    }
+    this.dbPath = dbPath;
+    File file = new File(dbPath);
+    File parent = file.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    try {
+      this.writer = open(false);
+      this.readers = new ArrayBlockingQueue<>(readerCount);
+      for (int i = 0; i < readerCount; i++) {
+        readers.add(open(true));
+      }
+    } catch (SQLException e) {
+      close();
+      throw new RuntimeException("Failed to open DB " + dbPath, e);
+    }
+  }
+
+  public String path() {
+    return dbPath;
+  }
+
+  public <T> T read(SqlWork<T> work) throws SQLException {
+    PooledConnection conn;
+    try {
+      conn = readers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a reader connection", e);
+    }
+    try {
+      return work.apply(conn);
+    } finally {
+      readers.add(conn);
+    }
+  }
+
+  public <T> T write(SqlWork<T> work) throws SQLException {
+    writeLock.lock();
+    try {
+      return work.apply(writer);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  public <T> T maintenance(SqlWork<T> work) throws SQLException {
+    writeLock.lock();
+    try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbPath)) {
+      try (Statement st = c.createStatement()) {
+        st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+      }
+      PooledConnection conn = new PooledConnection(c);
+      try {
+        return work.apply(conn);
+      } finally {
+        conn.close();
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  public <T> T transaction(SqlWork<T> work) throws SQLException {
+    writeLock.lock();
+    try {
+      Connection c = writer.connection;
+      c.setAutoCommit(false);
+      try {
+        T result = work.apply(writer);
+        c.commit();
+        return result;
+      } catch (SQLException | RuntimeException e) {
+        c.rollback();
+        throw e;
+      } finally {
+        c.setAutoCommit(true);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    for (PooledConnection conn : all) {
+      conn.close();
+    }
+    all.clear();
+  }
+
+  private PooledConnection open(boolean readOnly) throws SQLException {
+    Connection c = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+    PooledConnection conn = new PooledConnection(c);
+    synchronized (this) {
+      all.add(conn);
+    }
+    try (Statement st = c.createStatement()) {
+      st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+      if (readOnly) {
+        st.execute("PRAGMA query_only=1");
+      } else {
+        st.execute("PRAGMA journal_mode=WAL");
+        st.execute("PRAGMA synchronous=FULL");
+      }
+    }
+    return conn;
+  }
+
+  public static final class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    private PooledConnection(Connection connection) {
+      this.connection = connection;
+    }
+
+    public Connection connection() {
+      return connection;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement ps = statements.get(sql);
+      if (ps == null || ps.isClosed()) {
+        ps = connection.prepareStatement(sql);
+        statements.put(sql, ps);
+      }
+      return ps;
+    }
+
+    private void close() {
+      for (PreparedStatement ps : statements.values()) {
+        try {
+          ps.close();
+        } catch (SQLException ignored) {
+        }
+      }
+      statements.clear();
+      try {
+        connection.close();
+      } catch (SQLException ignored) {
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.defacto.maxbot;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucket {
+  private final double ratePerNano;
+  private final double capacity;
+  private double tokens;
+  private long lastRefill;
+  private long pausedUntil;
+
+  public TokenBucket(double ratePerSecond, int burst) {
+    if (ratePerSecond <= 0) {
+      throw new IllegalArgumentException("ratePerSecond must be positive");
+    }
+    this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.capacity = Math.max(1, burst);
+    this.tokens = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  public void acquire() throws InterruptedException {
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        refill(now);
+        if (now - pausedUntil < 0) {
+          waitNanos = pausedUntil - now;
+        } else if (tokens >= 1) {
+          tokens -= 1;
+          return;
+        } else {
+          waitNanos = (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+      }
+      TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1));
+    }
+  }
+
+  public synchronized void pauseFor(long millis) {
+    long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    if (until - pausedUntil > 0) {
+      pausedUntil = until;
+    }
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,105 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "update_type", defaultImpl = Update.Unknown.class)
+@JsonSubTypes({
+    @JsonSubTypes.Type(value = Update.BotStarted.class, name = "bot_started"),
+    @JsonSubTypes.Type(value = Update.MessageCreated.class, name = "message_created"),
+    @JsonSubTypes.Type(value = Update.MessageCallback.class, name = "message_callback")
+})
+public sealed interface Update permits Update.BotStarted, Update.MessageCreated, Update.MessageCallback, Update.Unknown {
+  long timestamp();
+
+  long userId();
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record User(@JsonProperty("user_id") long userId,
+              @JsonProperty("is_bot") boolean isBot) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Body(@JsonProperty("mid") String mid,
+              @JsonProperty("text") String text) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Message(@JsonProperty("sender") User sender,
+                 @JsonProperty("body") Body body) {
+    public long senderId() {
+      return sender == null ? 0 : sender.userId();
+    }
+
+    public String mid() {
+      return body == null || body.mid() == null ? "" : body.mid();
+    }
+
+    public String text() {
+      return body == null || body.text() == null ? "" : body.text();
+    }
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Callback(@JsonProperty("callback_id") String callbackId,
+                  @JsonProperty("payload") String payload,
+                  @JsonProperty("user_id") long userId,
+                  @JsonProperty("user") User user) {
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record BotStarted(@JsonProperty("timestamp") long timestamp,
+                    @JsonProperty("user") User user) implements Update {
+    @Override
+    public long userId() {
+      return user == null ? 0 : user.userId();
+    }
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record MessageCreated(@JsonProperty("timestamp") long timestamp,
+                        @JsonProperty("message") Message message) implements Update {
+    @Override
+    public long userId() {
+      return message == null ? 0 : message.senderId();
+    }
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record MessageCallback(@JsonProperty("timestamp") long timestamp,
+                         @JsonProperty("callback") Callback callback,
+                         @JsonProperty("message") Message message) implements Update {
+    @Override
+    public long userId() {
+      if (callback == null) {
+        return 0;
+      }
+      long userId = callback.userId();
+      if (userId == 0 && callback.user() != null) {
+        userId = callback.user().userId();
+      }
+      if (userId == 0 && message != null) {
+        userId = message.senderId();
+      }
+      return userId;
+    }
+
+    public String callbackId() {
+      return callback == null || callback.callbackId() == null ? "" : callback.callbackId();
+    }
+
+    public String payload() {
+      return callback == null || callback.payload() == null ? "" : callback.payload();
+    }
+  }
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  record Unknown(@JsonProperty("timestamp") long timestamp) implements Update {
+    @Override
+    public long userId() {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package com.defacto.maxbot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UpdateDispatcher {
+  private static final String[] UPDATE_TYPES = {"bot_started", "message_created", "message_callback", "unknown"};
+  private static final long DRAIN_TIMEOUT_MS = 5_000;
+
+  private final UpdateProcessor processor;
+  private final Worker[] workers;
+  private final Metrics.Histogram[] latency = new Metrics.Histogram[UPDATE_TYPES.length];
+  private final Metrics.Counter[] errors = new Metrics.Counter[UPDATE_TYPES.length];
+  private long lastSnapshotAt;
+  private long[] lastBusyNanos;
+  private volatile boolean closed;
+
+  public UpdateDispatcher(UpdateProcessor processor, int workerCount, int queueCapacity) {
+    this(processor, workerCount, queueCapacity, new Metrics());
+  }
+
+  public UpdateDispatcher(UpdateProcessor processor, int workerCount, int queueCapacity, Metrics metrics) {
+    if (workerCount < 1) {
+      throw new IllegalArgumentException("workerCount must be positive");
+    }
+    this.processor = processor;
+    for (int i = 0; i < UPDATE_TYPES.length; i++) {
+      latency[i] = metrics.histogram("maxbot_update_processing_seconds",
+          "Time spent handling an update on a worker", "type", UPDATE_TYPES[i]);
+      errors[i] = metrics.counter("maxbot_update_errors_total",
+          "Updates whose handling threw an exception", "type", UPDATE_TYPES[i]);
+    }
+    this.workers = new Worker[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      workers[i] = new Worker(i, queueCapacity);
+      workers[i].thread.start();
+    }
+    this.lastSnapshotAt = System.nanoTime();
+    this.lastBusyNanos = new long[workerCount];
+  }
+
+  public CompletableFuture<Void> dispatch(Update update) {
+    Task task = new Task(update);
+    if (closed) {
+      task.future.completeExceptionally(new IllegalStateException("Dispatcher is closed"));
+      return task.future;
+    }
+    Worker worker = workers[workerIndex(update.userId())];
+    try {
+      worker.queue.put(task);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      task.future.completeExceptionally(e);
+    }
+    return task.future;
+  }
+
+  public CompletableFuture<Void> tryDispatch(Update update) {
+    Task task = new Task(update);
+    if (closed) {
+      task.future.completeExceptionally(new IllegalStateException("Dispatcher is closed"));
+      return task.future;
+    }
+    Worker worker = workers[workerIndex(update.userId())];
+    return worker.queue.offer(task) ? task.future : null;
+  }
+
+  public CompletableFuture<Void> dispatchAll(Iterable<? extends Update> updates) {
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (Update upd : updates) {
+      futures.add(dispatch(upd));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  public int workerCount() {
+    return workers.length;
+  }
+
+  public int queueDepth() {
+    int total = 0;
+    for (Worker w : workers) {
+      total += w.queue.size();
+    }
+    return total;
+  }
+
+  public int[] queueDepths() {
+    int[] depths = new int[workers.length];
+    for (int i = 0; i < workers.length; i++) {
+      depths[i] = workers[i].queue.size();
+    }
+    return depths;
+  }
+
+  public long[] busyNanos() {
+    long[] busy = new long[workers.length];
+    for (int i = 0; i < workers.length; i++) {
+      busy[i] = workers[i].busyNanos();
+    }
+    return busy;
+  }
+
+  public synchronized double[] utilization() {
+    long now = System.nanoTime();
+    long[] busy = busyNanos();
+    long elapsed = Math.max(1, now - lastSnapshotAt);
+    double[] result = new double[workers.length];
+    for (int i = 0; i < workers.length; i++) {
+      result[i] = Math.min(1.0, (double) (busy[i] - lastBusyNanos[i]) / elapsed);
+    }
+    lastSnapshotAt = now;
+    lastBusyNanos = busy;
+    return result;
+  }
+
+  public String describe() {
+    double[] util = utilization();
+    int[] depths = queueDepths();
+    StringBuilder sb = new StringBuilder();
+    sb.append("queued=").append(queueDepth()).append(" workers=[");
+    for (int i = 0; i < workers.length; i++) {
+      if (i > 0) sb.append(", ");
+      sb.append(depths[i]).append('/').append(Math.round(util[i] * 100)).append('%');
+    }
+    return sb.append(']').toString();
+  }
+
+  public void shutdown() {
+    for (Worker w : workers) {
+      w.thread.interrupt();
+    }
+  }
+
+  public void close() {
+    closed = true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+    while (!idle() && System.nanoTime() - deadline < 0) {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    shutdown();
+    List<Task> left = new ArrayList<>();
+    for (Worker w : workers) {
+      w.queue.drainTo(left);
+    }
+    for (Task task : left) {
+      task.future.completeExceptionally(new IllegalStateException("Dispatcher is closed"));
+    }
+    if (!left.isEmpty()) {
+      System.err.println("[WARN] " + left.size() + " update(s) left unprocessed on shutdown");
+    }
+  }
+
+  private boolean idle() {
+    for (Worker w : workers) {
+      if (!w.queue.isEmpty() || w.busySince != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int typeIndex(Update update) {
+    if (update instanceof Update.BotStarted) return 0;
+    if (update instanceof Update.MessageCreated) return 1;
+    if (update instanceof Update.MessageCallback) return 2;
+    return 3;
+  }
+
+  private int workerIndex(long userId) {
+    long h = userId * 0x9E3779B97F4A7C15L;
+    return (int) Math.floorMod(h ^ (h >>> 32), (long) workers.length);
+  }
+
+  private static final class Task {
+    final Update update;
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    Task(Update update) {
+      this.update = update;
+    }
+  }
+
+  private final class Worker implements Runnable {
+    final BlockingQueue<Task> queue;
+    final Thread thread;
+    final AtomicLong busyNanos = new AtomicLong();
+    volatile long busySince;
+
+    Worker(int index, int capacity) {
+      this.queue = new LinkedBlockingQueue<>(capacity);
+      this.thread = new Thread(this, "update-worker-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    long busyNanos() {
+      long since = busySince;
+      return busyNanos.get() + (since == 0 ? 0 : System.nanoTime() - since);
+    }
+
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        Task task;
+        try {
+          task = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        long start = System.nanoTime();
+        busySince = start;
+        try {
+          processor.handleUpdate(task.update);
+          task.future.complete(null);
+        } catch (Throwable e) {
+          System.err.println("Update error: " + e);
+          errors[typeIndex(task.update)].inc();
+          task.future.completeExceptionally(e);
+        } finally {
+          long elapsed = System.nanoTime() - start;
+          busySince = 0;
+          busyNanos.addAndGet(elapsed);
+          latency[typeIndex(task.update)].observeNanos(elapsed);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class UpdateStreamReader {
+  @FunctionalInterface
+  public interface UpdateSink {
+    void accept(Update update) throws IOException;
+  }
+
+  private final ObjectMapper mapper;
+
+  public UpdateStreamReader(ObjectMapper mapper) {
+    this.mapper = mapper;
+  }
+
+  public Long read(InputStream in, UpdateSink sink) throws IOException {
+    try (JsonParser p = mapper.getFactory().createParser(in)) {
+      if (p.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      Long marker = null;
+      ObjectNode single = null;
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String field = p.currentName();
+        JsonToken value = p.nextToken();
+        if ("updates".equals(field) && value == JsonToken.START_ARRAY) {
+          JsonToken t;
+          while ((t = p.nextToken()) != JsonToken.END_ARRAY && t != null) {
+            if (t == JsonToken.START_OBJECT) {
+              sink.accept(p.readValueAs(Update.class));
+            } else {
+              p.skipChildren();
+            }
+          }
+        } else if ("marker".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+          marker = p.getLongValue();
+        } else {
+          if (single == null) {
+            single = mapper.createObjectNode();
+          }
+          single.set(field, p.readValueAsTree());
+        }
+      }
+      if (single != null && single.has("update_type")) {
+        sink.accept(mapper.treeToValue(single, Update.class));
+      }
+      return marker;
+    }
+  }
+}
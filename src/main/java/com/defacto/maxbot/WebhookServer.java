@@ -0,0 +1,234 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WebhookServer {
+  private static final String SECRET_HEADER = "X-Max-Bot-Api-Secret";
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private final HttpServer server;
+  private final ThreadPoolExecutor executor;
+  private final UpdateStreamReader reader;
+  private final UpdateDispatcher dispatcher;
+  private final InboundJournal journal;
+  private final Cluster cluster;
+  private final byte[] secret;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong malformed = new AtomicLong();
+  private final AtomicLong overloaded = new AtomicLong();
+
+  public WebhookServer(int port, String secret, UpdateStreamReader reader, UpdateDispatcher dispatcher,
+                       InboundJournal journal, int threads, int backlog) throws IOException {
+    this(port, secret, reader, dispatcher, journal, null, threads, backlog);
+  }
+
+  public WebhookServer(int port, String secret, UpdateStreamReader reader, UpdateDispatcher dispatcher,
+                       InboundJournal journal, Cluster cluster, int threads, int backlog) throws IOException {
+    this.reader = reader;
+    this.dispatcher = dispatcher;
+    this.journal = journal;
+    this.cluster = cluster;
+    this.secret = secret == null || secret.isBlank() ? null : secret.getBytes(StandardCharsets.UTF_8);
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(backlog), r -> {
+          Thread t = new Thread(r, "webhook-" + counter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    this.server = HttpServer.create(new InetSocketAddress(port), backlog);
+    addContext("/webhook", exchange -> handle(exchange, cluster != null));
+    if (cluster != null) {
+      addContext(Cluster.UPDATES_PATH, exchange -> handle(exchange, false));
+    }
+  }
+
+  public void addContext(String path, HttpHandler handler) {
+    server.createContext(path, exchange -> {
+      try {
+        executor.execute(() -> {
+          try {
+            handler.handle(exchange);
+          } catch (IOException | RuntimeException e) {
+            System.err.println("[WARN] " + path + " handler failed: " + e.getMessage());
+            exchange.close();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        overloaded.incrementAndGet();
+        try (exchange) {
+          exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+          exchange.sendResponseHeaders(503, -1);
+        }
+      }
+    });
+  }
+
+  public void addInlineContext(String path, HttpHandler handler) {
+    server.createContext(path, handler);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(1);
+    executor.shutdown();
+    try {
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public long accepted() {
+    return accepted.get();
+  }
+
+  public long rejected() {
+    return rejected.get();
+  }
+
+  public long overloaded() {
+    return overloaded.get();
+  }
+
+  public int httpQueued() {
+    return executor.getQueue().size();
+  }
+
+  public String describe() {
+    return "accepted=" + accepted.get() +
+        " rejected=" + rejected.get() +
+        " malformed=" + malformed.get() +
+        " overloaded=" + overloaded.get() +
+        " http_queued=" + httpQueued();
+  }
+
+  private void handle(HttpExchange exchange, boolean route) throws IOException {
+    boolean deferred = false;
+    try {
+      if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      if (secret != null) {
+        String header = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+        if (header == null || !MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8))) {
+          exchange.sendResponseHeaders(403, -1);
+          return;
+        }
+      }
+
+      int[] counts = new int[2];
+      List<CompletableFuture<Void>> written = new ArrayList<>();
+      Map<String, List<Update>> remote = new HashMap<>();
+      try (InputStream is = exchange.getRequestBody()) {
+        reader.read(is, update -> {
+          if (route) {
+            String owner = cluster.owner(update.userId());
+            if (!cluster.self().equals(owner)) {
+              remote.computeIfAbsent(owner, k -> new ArrayList<>()).add(update);
+              return;
+            }
+          }
+          InboundJournal.Appended entry = journal.append(update);
+          written.add(entry.written());
+          CompletableFuture<Void> processed = dispatcher.tryDispatch(update);
+          if (processed != null) {
+            counts[0]++;
+          } else {
+            counts[1]++;
+            processed = CompletableFuture.completedFuture(null);
+          }
+          journal.trackDone(entry, processed);
+        });
+      } catch (JsonProcessingException e) {
+        malformed.incrementAndGet();
+        respond(exchange, 400, "BAD REQUEST");
+        return;
+      }
+      AtomicInteger unplaced = new AtomicInteger();
+      List<CompletableFuture<Void>> forwards = new ArrayList<>(remote.size());
+      for (Map.Entry<String, List<Update>> e : remote.entrySet()) {
+        forwards.add(cluster.forward(e.getKey(), e.getValue()).handle((r, err) -> {
+          if (err != null) {
+            System.err.println("[WARN] Forwarding " + e.getValue().size() + " update(s) to " + e.getKey() +
+                " failed: " + err.getMessage());
+            unplaced.addAndGet(e.getValue().size());
+          }
+          return null;
+        }));
+      }
+      try {
+        InboundJournal.awaitWritten(written);
+      } catch (IOException e) {
+        System.err.println("[WARN] " + e.getMessage() + ": " + e.getCause());
+        respond(exchange, 500, "ERROR");
+        return;
+      }
+      if (counts[1] > 0) {
+        System.err.println("[WARN] Webhook queue full, rejected " + counts[1] + " update(s)");
+      }
+      if (forwards.isEmpty()) {
+        finish(exchange, counts[0], counts[1]);
+        return;
+      }
+      deferred = true;
+      CompletableFuture.allOf(forwards.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> {
+        try (exchange) {
+          finish(exchange, counts[0], counts[1] + unplaced.get());
+        } catch (IOException ex) {
+          System.err.println("[WARN] Webhook response failed: " + ex.getMessage());
+        }
+      });
+    } finally {
+      if (!deferred) {
+        exchange.close();
+      }
+    }
+  }
+
+  private void finish(HttpExchange exchange, int placed, int unplaced) throws IOException {
+    accepted.addAndGet(placed);
+    if (unplaced > 0) {
+      rejected.addAndGet(unplaced);
+      exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+      respond(exchange, 503, "BUSY");
+      return;
+    }
+    respond(exchange, 200, "OK");
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+}
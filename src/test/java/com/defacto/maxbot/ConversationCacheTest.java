@@ -0,0 +1,129 @@
+package com.defacto.maxbot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConversationCacheTest {
+  private final FlakyStore store = new FlakyStore();
+  private ConversationCache cache;
+
+  @AfterEach
+  void close() {
+    store.failing = false;
+    store.loading.countDown();
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  @Test
+  void failedWriteThroughEvictsTheEntry() {
+    cache = new ConversationCache(store, null, 16, ConversationCache.Durability.WRITE_THROUGH, 0);
+    store.upsertConversation(stored(1, "STORED"));
+    edit(1, "EDITED");
+    store.failing = true;
+
+    assertThrows(RuntimeException.class, cache::endUpdate);
+    assertEquals(0, cache.size());
+    store.failing = false;
+    assertEquals("STORED", cache.getConversation(1).state);
+  }
+
+  @Test
+  void failedWriteBehindFlushEvictsTheEntry() {
+    cache = new ConversationCache(store, null, 16, ConversationCache.Durability.WRITE_BEHIND, 60_000);
+    store.upsertConversation(stored(1, "STORED"));
+    edit(1, "EDITED");
+    cache.endUpdate();
+    assertEquals(1, cache.dirtyEntries());
+    store.failing = true;
+
+    assertThrows(RuntimeException.class, cache::flush);
+    assertEquals(0, cache.dirtyEntries());
+    assertEquals(0, cache.size());
+    store.failing = false;
+    assertEquals("STORED", cache.getConversation(1).state);
+  }
+
+  @Test
+  void removeWaitsForAConcurrentLoad() throws Exception {
+    cache = new ConversationCache(store, null, 16, ConversationCache.Durability.WRITE_THROUGH, 0);
+    store.upsertConversation(stored(1, "STORED"));
+    store.loading = new CountDownLatch(1);
+
+    CompletableFuture<Conversation> load = CompletableFuture.supplyAsync(() -> cache.getConversation(1));
+    Thread.sleep(100);
+    assertFalse(load.isDone());
+    CompletableFuture<Conversation> removed = CompletableFuture.supplyAsync(() -> cache.remove(1));
+    Thread.sleep(100);
+    assertFalse(removed.isDone());
+
+    store.loading.countDown();
+    assertEquals("STORED", load.get(5, TimeUnit.SECONDS).state);
+    assertNotNull(removed.get(5, TimeUnit.SECONDS));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void expiredUsersAreEvictedUnlessDirty() {
+    cache = new ConversationCache(store, null, 16, ConversationCache.Durability.WRITE_BEHIND, 60_000);
+    store.upsertConversation(stored(1, "STORED"));
+    store.upsertConversation(stored(2, "STORED"));
+    cache.getConversation(1);
+    edit(2, "EDITED");
+    cache.endUpdate();
+    store.deleteConversation(1);
+    store.deleteConversation(2);
+
+    cache.evictExpired(1);
+    cache.evictExpired(2);
+    assertEquals(1, cache.size());
+    assertEquals(Conversation.START, cache.getConversation(1).state);
+    cache.flush();
+    assertEquals("EDITED", store.findConversation(2).state);
+  }
+
+  private void edit(long userId, String state) {
+    Conversation c = cache.getConversation(userId);
+    c.state = state;
+    cache.upsertConversation(c);
+  }
+
+  private static Conversation stored(long userId, String state) {
+    Conversation c = new Conversation(userId);
+    c.state = state;
+    return c;
+  }
+
+  private static final class FlakyStore extends MemoryConversationStore {
+    volatile boolean failing;
+    volatile CountDownLatch loading = new CountDownLatch(0);
+
+    @Override
+    public Conversation findConversation(long userId) {
+      try {
+        loading.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return super.findConversation(userId);
+    }
+
+    @Override
+    public CompletableFuture<Void> upsertConversationAsync(Conversation c) {
+      if (failing) {
+        return CompletableFuture.failedFuture(new IllegalStateException("disk full"));
+      }
+      return super.upsertConversationAsync(c);
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationStoreContractTest {
+  private static final int USERS = 2_000;
+
+  @TempDir
+  File dir;
+
+  private final List<AutoCloseable> opened = new ArrayList<>();
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @AfterEach
+  void closeStores() throws Exception {
+    for (int i = opened.size() - 1; i >= 0; i--) {
+      opened.get(i).close();
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void unknownUserIsAbsent(String backend) {
+    assertNull(open(backend).findConversation(42));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void getConversationCreatesAndPersists(String backend) {
+    ConversationStore store = open(backend);
+    assertEquals(Conversation.START, store.getConversation(42).state);
+    assertNotNull(store.findConversation(42));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void roundTrip(String backend) {
+    ConversationStore store = open(backend);
+    store.upsertConversation(sample(43));
+    assertConversation(sample(43), store.findConversation(43));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void loadedCopyIsDetached(String backend) {
+    ConversationStore store = open(backend);
+    store.upsertConversation(sample(43));
+    Conversation loaded = store.findConversation(43);
+    loaded.state = "CHANGED";
+    loaded.data.put("extra", "1");
+    assertConversation(sample(43), store.findConversation(43));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void overwriteDropsRemovedKeys(String backend) {
+    ConversationStore store = open(backend);
+    store.upsertConversation(sample(43));
+    Conversation loaded = store.findConversation(43);
+    loaded.data.remove("replan_type");
+    store.upsertConversation(loaded);
+    assertConversation(loaded, store.findConversation(43));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void resetClearsState(String backend) {
+    ConversationStore store = open(backend);
+    store.upsertConversation(sample(43));
+    store.resetConversation(store.findConversation(43));
+    Conversation reset = store.findConversation(43);
+    assertNotNull(reset);
+    assertEquals(Conversation.START, reset.state);
+    assertTrue(reset.topic.isEmpty() && reset.phone.isEmpty() && reset.timePref.isEmpty() && reset.data.isEmpty());
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void deleteRemovesConversation(String backend) {
+    ConversationStore store = open(backend);
+    store.upsertConversation(sample(43));
+    store.upsertConversation(sample(44));
+    store.deleteConversation(44);
+    assertNull(store.findConversation(44));
+    store.deleteConversation(44);
+    assertConversation(sample(43), store.findConversation(43));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void concurrentWriters(String backend) throws Exception {
+    ConversationStore store = open(backend);
+    fill(store);
+    assertAllPresent(store);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"sqlite", "mmap"})
+  void survivesReopen(String backend) throws Exception {
+    ConversationStore store = open(backend);
+    fill(store);
+    store.resetConversation(store.getConversation(43));
+    store.close();
+    opened.remove(store);
+    ConversationStore reopened = open(backend);
+    assertEquals(Conversation.START, reopened.findConversation(43).state);
+    assertAllPresent(reopened);
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void expiryRemovesIdleConversationsInBatches(String backend) throws Exception {
+    ConversationStore store = open(backend);
+    fill(store);
+    Thread.sleep(5);
+    long idleBefore = System.currentTimeMillis();
+    Thread.sleep(5);
+    store.upsertConversation(sample(1_000));
+    int total = store.expireIdle(idleBefore, 100);
+    assertEquals(100, total);
+    int batch;
+    while ((batch = store.expireIdle(idleBefore, 100)) > 0) {
+      total += batch;
+    }
+    assertEquals(USERS - 1, total);
+    assertNull(store.findConversation(1_001));
+    assertConversation(sample(1_000), store.findConversation(1_000));
+    store.upsertConversation(sample(1_001));
+    assertConversation(sample(1_001), store.findConversation(1_001));
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"memory", "sqlite", "mmap"})
+  void expiryReportsRemovedUsers(String backend) throws Exception {
+    ConversationStore store = open(backend);
+    store.upsertConversation(sample(1));
+    store.upsertConversation(sample(2));
+    Thread.sleep(5);
+    long idleBefore = System.currentTimeMillis();
+    Thread.sleep(5);
+    store.upsertConversation(sample(2));
+    List<Long> expired = new ArrayList<>();
+    assertEquals(1, store.expireIdle(idleBefore, 100, expired::add));
+    assertEquals(List.of(1L), expired);
+  }
+
+  @Test
+  void mappedRejectsOversizedConversation() {
+    MappedConversationStore store = mapped("limits.map", 2, 256);
+    Conversation big = sample(1);
+    big.data.put("question", "x".repeat(256));
+    assertThrows(RuntimeException.class, () -> store.upsertConversation(big));
+    assertNull(store.findConversation(1));
+    assertEquals(0, store.used());
+  }
+
+  @Test
+  void mappedRejectsDataLongerThanItsLengthField() {
+    MappedConversationStore store = mapped("huge.map", 2, 128 * 1024);
+    Conversation huge = sample(1);
+    huge.data.put("question", "x".repeat(70_000));
+    RuntimeException e = assertThrows(RuntimeException.class, () -> store.upsertConversation(huge));
+    assertTrue(e.getCause().getMessage().contains("at most 65535"), e.getCause().getMessage());
+    assertNull(store.findConversation(1));
+  }
+
+  @Test
+  void mappedReusesAndFreesSlots() {
+    MappedConversationStore store = mapped("limits.map", 2, 256);
+    store.upsertConversation(sample(1));
+    store.upsertConversation(sample(2));
+    store.upsertConversation(sample(1));
+    assertEquals(2, store.used());
+    assertThrows(RuntimeException.class, () -> store.upsertConversation(sample(3)));
+    store.deleteConversation(2);
+    store.upsertConversation(sample(3));
+    assertEquals(2, store.used());
+    assertConversation(sample(3), store.findConversation(3));
+    assertNull(store.findConversation(2));
+  }
+
+  @Test
+  void mappedRejectsDifferentGeometry() {
+    mapped("limits.map", 2, 256).close();
+    assertThrows(IllegalStateException.class, () -> mapped("limits.map", 4, 256));
+  }
+
+  @Test
+  void mappedDropsTornSlot() throws Exception {
+    File file = new File(dir, "torn.map");
+    MappedConversationStore store = mapped("torn.map", 2, 256);
+    store.upsertConversation(sample(1));
+    store.upsertConversation(sample(2));
+    store.close();
+    opened.remove(store);
+    try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      long payload = 64 + 24 + 4;
+      raw.seek(payload);
+      int b = raw.read();
+      raw.seek(payload);
+      raw.write(b ^ 0x5a);
+    }
+    MappedConversationStore reopened = mapped("torn.map", 2, 256);
+    assertNull(reopened.findConversation(1));
+    assertEquals(1, reopened.used());
+    assertConversation(sample(2), reopened.findConversation(2));
+    reopened.upsertConversation(sample(1));
+    assertConversation(sample(1), reopened.findConversation(1));
+  }
+
+  @Test
+  void sqliteMigratesJsonData() throws Exception {
+    File file = new File(dir, "legacy.db");
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+         Statement st = conn.createStatement()) {
+      st.execute("CREATE TABLE conversations (user_id INTEGER PRIMARY KEY, state TEXT NOT NULL, topic TEXT, " +
+          "data TEXT, phone TEXT, time_pref TEXT, updated_at INTEGER)");
+      try (PreparedStatement ps = conn.prepareStatement(
+          "INSERT INTO conversations VALUES(?, 'REPLAN_CITY', '', ?, '', '', 0)")) {
+        for (long id = 1; id <= USERS; id++) {
+          ps.setLong(1, id);
+          ps.setString(2, "{\"replan_type\":\"жилое\",\"custom\":\"" + id + "\"}");
+          ps.executeUpdate();
+        }
+        ps.setLong(1, USERS + 1);
+        ps.setString(2, "{\"last_menu_at\":1760000000000,\"empty\":null}");
+        ps.executeUpdate();
+        ps.setLong(1, USERS + 2);
+        ps.setString(2, "not json");
+        ps.executeUpdate();
+      }
+    }
+    SqliteDatabase db = new SqliteDatabase(file.getPath(), 1);
+    opened.add(db);
+    GroupCommitWriter writer = new GroupCommitWriter(db, 1, 64);
+    opened.add(writer::close);
+    ConversationStore store = new SqliteConversationStore(db, writer, mapper);
+    assertEquals(Map.of("replan_type", "жилое", "custom", "1"), store.findConversation(1).data);
+    assertEquals(Map.of("replan_type", "жилое", "custom", String.valueOf(USERS)), store.findConversation(USERS).data);
+    assertEquals(Map.of("last_menu_at", "1760000000000"), store.findConversation(USERS + 1).data);
+    assertTrue(store.findConversation(USERS + 2).data.isEmpty());
+    int remaining = db.read(conn -> {
+      try (ResultSet rs = conn.connection().createStatement()
+          .executeQuery("SELECT COUNT(*) FROM conversations WHERE typeof(data) <> 'blob'")) {
+        return rs.next() ? rs.getInt(1) : -1;
+      }
+    });
+    assertEquals(0, remaining);
+  }
+
+  private ConversationStore open(String backend) {
+    return switch (backend) {
+      case "memory" -> new MemoryConversationStore();
+      case "sqlite" -> {
+        SqliteDatabase db = new SqliteDatabase(new File(dir, "contract.db").getPath(), 2);
+        opened.add(db);
+        GroupCommitWriter writer = new GroupCommitWriter(db, 1, 64);
+        opened.add(writer::close);
+        yield new SqliteConversationStore(db, writer, mapper);
+      }
+      case "mmap" -> mapped("contract.map", USERS * 2, 512);
+      default -> throw new IllegalArgumentException("Unknown store backend: " + backend);
+    };
+  }
+
+  private MappedConversationStore mapped(String name, int slots, int slotSize) {
+    MappedConversationStore store = new MappedConversationStore(new File(dir, name).getPath(), slots, slotSize);
+    opened.add(store);
+    return store;
+  }
+
+  private static void fill(ConversationStore store) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> writes = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        int shard = t;
+        writes.add(pool.submit(() -> {
+          for (long id = 1_000 + shard; id < 1_000 + USERS; id += 4) {
+            store.upsertConversation(sample(id));
+          }
+        }));
+      }
+      for (Future<?> f : writes) {
+        f.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void assertAllPresent(ConversationStore store) {
+    for (long id = 1_000; id < 1_000 + USERS; id++) {
+      assertConversation(sample(id), store.findConversation(id));
+    }
+  }
+
+  private static void assertConversation(Conversation expected, Conversation actual) {
+    assertNotNull(actual, "conversation of user " + expected.userId);
+    assertEquals(expected.userId, actual.userId);
+    assertEquals(expected.state, actual.state);
+    assertEquals(expected.topic, actual.topic);
+    assertEquals(expected.phone, actual.phone);
+    assertEquals(expected.timePref, actual.timePref);
+    assertEquals(expected.data, actual.data);
+  }
+
+  private static Conversation sample(long userId) {
+    Conversation c = new Conversation(userId);
+    c.state = "REPLAN_CITY";
+    c.topic = "🏗️ Перепланировка";
+    c.phone = "+7 900 " + userId;
+    c.timePref = "🌅 Утром (09:00–12:00)";
+    c.data = new HashMap<>(Map.of(
+        "replan_type", "🏠 Жилое",
+        "city", "Михайловск",
+        "last_menu_at", String.valueOf(userId * 1000)));
+    return c;
+  }
+}
@@ -0,0 +1,62 @@
+package com.defacto.maxbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DedupFilterTest {
+  @TempDir
+  File dir;
+
+  @Test
+  void failedUpdateCanBeRetried() {
+    DedupFilter dedup = new DedupFilter(60_000, 16);
+    Update update = message("mid.1");
+
+    assertTrue(dedup.claim(update));
+    assertFalse(dedup.claim(update));
+    dedup.finish(update, false);
+    assertTrue(dedup.claim(update));
+    dedup.finish(update, true);
+    assertFalse(dedup.claim(update));
+    assertEquals(2, dedup.duplicates());
+  }
+
+  @Test
+  void handledKeysSurviveRestartButFailedOnesDoNot() {
+    String path = new File(dir, "dedup.db").getPath();
+    try (SqliteDatabase db = new SqliteDatabase(path, 1)) {
+      GroupCommitWriter writer = new GroupCommitWriter(db, 1, 64);
+      DedupFilter dedup = new DedupFilter(60_000, 16, db, writer);
+      assertTrue(dedup.claim(message("mid.ok")));
+      dedup.finish(message("mid.ok"), true);
+      assertTrue(dedup.claim(message("mid.failed")));
+      dedup.finish(message("mid.failed"), false);
+      writer.close();
+    }
+    try (SqliteDatabase db = new SqliteDatabase(path, 1)) {
+      GroupCommitWriter writer = new GroupCommitWriter(db, 1, 64);
+      DedupFilter dedup = new DedupFilter(60_000, 16, db, writer);
+      assertFalse(dedup.claim(message("mid.ok")));
+      assertTrue(dedup.claim(message("mid.failed")));
+      writer.close();
+    }
+  }
+
+  @Test
+  void messageAndCallbackIdsDoNotCollide() {
+    DedupFilter dedup = new DedupFilter(60_000, 16);
+    Update callback = new Update.MessageCallback(1, new Update.Callback("mid.1", "payload", 1, null), null);
+    assertTrue(dedup.claim(message("mid.1")));
+    assertTrue(dedup.claim(callback));
+  }
+
+  private static Update message(String mid) {
+    return new Update.MessageCreated(1, new Update.Message(new Update.User(1, false), new Update.Body(mid, "text")));
+  }
+}
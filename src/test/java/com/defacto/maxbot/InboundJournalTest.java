@@ -0,0 +1,138 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InboundJournalTest {
+  @TempDir
+  File dir;
+
+  private final List<Long> handled = new CopyOnWriteArrayList<>();
+  private final List<UpdateDispatcher> dispatchers = new ArrayList<>();
+  private SqliteDatabase db;
+  private GroupCommitWriter writer;
+  private InboundJournal journal;
+
+  @BeforeEach
+  void open() {
+    db = new SqliteDatabase(new File(dir, "journal.db").getPath(), 1);
+    writer = new GroupCommitWriter(db, 1, 64);
+    journal = new InboundJournal(db, writer, new ObjectMapper(), 60_000);
+  }
+
+  @AfterEach
+  void close() {
+    for (UpdateDispatcher d : dispatchers) {
+      d.shutdown();
+    }
+    journal.close();
+    writer.close();
+    db.close();
+  }
+
+  @Test
+  void failedUpdateSurvivesUntilReplaySucceeds() throws Exception {
+    UpdateDispatcher failing = dispatcher(1);
+    List<CompletableFuture<Void>> written = new ArrayList<>();
+    CompletableFuture<Void> bad = journal.dispatch(failing, started(1, 1), written);
+    CompletableFuture<Void> good = journal.dispatch(failing, started(2, 2), written);
+    InboundJournal.awaitWritten(written);
+    assertThrows(Exception.class, () -> bad.get(5, TimeUnit.SECONDS));
+    good.get(5, TimeUnit.SECONDS);
+    awaitCompaction(1);
+    journal.compact();
+    assertEquals(1, rows("inbound_journal"));
+
+    assertEquals(1, journal.replay(dispatcher(-1)));
+    assertEquals(List.of(2L, 1L), handled);
+    assertEquals(0, rows("inbound_journal"));
+  }
+
+  @Test
+  void entryIsParkedAfterRepeatedReplayFailures() throws Exception {
+    InboundJournal.awaitWritten(List.of(journal.append(started(1, 1)).written()));
+    UpdateDispatcher failing = dispatcher(1);
+    for (int i = 0; i < InboundJournal.MAX_REPLAY_ATTEMPTS; i++) {
+      assertEquals(1, journal.replay(failing));
+      assertEquals(1, rows("inbound_journal"));
+    }
+
+    assertEquals(0, journal.replay(dispatcher(-1)));
+    assertEquals(0, rows("inbound_journal"));
+    assertEquals(1, rows("inbound_dead_letter"));
+    assertEquals(1, journal.parked());
+    assertEquals(List.of(), handled);
+  }
+
+  @Test
+  void legacyJournalIsReplayed() throws Exception {
+    File file = new File(dir, "legacy.db");
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+         Statement st = conn.createStatement()) {
+      st.execute("CREATE TABLE inbound_journal (id INTEGER PRIMARY KEY, payload BLOB NOT NULL, " +
+          "received_at INTEGER NOT NULL)");
+      st.execute("INSERT INTO inbound_journal VALUES(7, CAST('" +
+          "{\"update_type\":\"bot_started\",\"timestamp\":1,\"user\":{\"user_id\":5}}' AS BLOB), 0)");
+    }
+    try (SqliteDatabase legacy = new SqliteDatabase(file.getPath(), 1)) {
+      GroupCommitWriter legacyWriter = new GroupCommitWriter(legacy, 1, 64);
+      InboundJournal legacyJournal = new InboundJournal(legacy, legacyWriter, new ObjectMapper(), 60_000);
+      assertEquals(1, legacyJournal.replay(dispatcher(-1)));
+      assertEquals(List.of(5L), handled);
+      legacyJournal.close();
+      legacyWriter.close();
+    }
+  }
+
+  private void awaitCompaction(int expected) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (journal.awaitingCompaction() < expected && System.nanoTime() - deadline < 0) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, journal.awaitingCompaction());
+  }
+
+  private int rows(String table) throws Exception {
+    return db.read(conn -> {
+      try (ResultSet rs = conn.connection().createStatement().executeQuery("SELECT COUNT(*) FROM " + table)) {
+        return rs.next() ? rs.getInt(1) : -1;
+      }
+    });
+  }
+
+  private UpdateDispatcher dispatcher(long failingTimestamp) {
+    UpdateProcessor processor = new UpdateProcessor(null, null, null, null, null, null, null, null, null) {
+      @Override
+      public void handleUpdate(Update update) {
+        if (update.timestamp() == failingTimestamp) {
+          throw new IllegalStateException("handler failed");
+        }
+        handled.add(update.userId());
+      }
+    };
+    UpdateDispatcher d = new UpdateDispatcher(processor, 1, 16);
+    dispatchers.add(d);
+    return d;
+  }
+
+  private static Update started(long timestamp, long userId) {
+    return new Update.BotStarted(timestamp, new Update.User(userId, false));
+  }
+}
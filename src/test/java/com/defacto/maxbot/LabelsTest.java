@@ -0,0 +1,15 @@
+package com.defacto.maxbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LabelsTest {
+  @Test
+  void truncateKeepsShortTextAndSurrogatePairs() {
+    assertEquals("Ставрополь", Labels.truncate("Ставрополь", 20));
+    assertEquals("Став", Labels.truncate("Ставрополь", 4));
+    assertEquals("ab", Labels.truncate("ab😀", 3));
+    assertEquals("ab😀", Labels.truncate("ab😀c", 4));
+  }
+}
@@ -0,0 +1,78 @@
+package com.defacto.maxbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LeadExporterTest {
+  private static final ZoneId MOSCOW = ZoneId.of("Europe/Moscow");
+
+  @Test
+  void csvFieldsAreQuotedOnlyWhenNeeded() throws IOException {
+    assertEquals("", csv(null));
+    assertEquals("", csv(""));
+    assertEquals("Перепланировка", csv("Перепланировка"));
+    assertEquals("\"Ставрополь, центр\"", csv("Ставрополь, центр"));
+    assertEquals("\"он сказал \"\"нет\"\"\"", csv("он сказал \"нет\""));
+    assertEquals("\"две\nстроки\"", csv("две\nстроки"));
+  }
+
+  @Test
+  void csvFormulasAreNeutralizedButPhonesAreNot() throws IOException {
+    assertEquals("\"'=HYPERLINK(\"\"http://x\"\")\"", csv("=HYPERLINK(\"http://x\")"));
+    assertEquals("\"'@SUM(A1)\"", csv("@SUM(A1)"));
+    assertEquals("\"'-2+3\"", csv("-2+3"));
+    assertEquals("+7 (900) 123-45-67", csv("+7 (900) 123-45-67"));
+    assertEquals("-15", csv("-15"));
+  }
+
+  @Test
+  void queryDefaultsToEverything() {
+    LeadExporter.Query q = LeadExporter.Query.parse(Map.of(), MOSCOW);
+    assertEquals(LeadExporter.Format.CSV, q.format());
+    assertNull(q.topic());
+    assertEquals(Long.MIN_VALUE, q.fromMillis());
+    assertEquals(Long.MAX_VALUE, q.toMillis());
+    assertEquals(0, q.afterId());
+  }
+
+  @Test
+  void queryDatesUseTheZoneAndIncludeTheLastDay() {
+    LeadExporter.Query q = LeadExporter.Query.parse(
+        Map.of("format", "NDJSON", "topic", "  Перепланировка ", "from", "2026-03-01", "to", "2026-03-31",
+            "after", "42"), MOSCOW);
+    assertEquals(LeadExporter.Format.NDJSON, q.format());
+    assertEquals("Перепланировка", q.topic());
+    assertEquals(OffsetDateTime.parse("2026-03-01T00:00+03:00").toInstant().toEpochMilli(), q.fromMillis());
+    assertEquals(OffsetDateTime.parse("2026-04-01T00:00+03:00").toInstant().toEpochMilli(), q.toMillis());
+    assertEquals(42, q.afterId());
+  }
+
+  @Test
+  void queryAcceptsIsoTimestampsWithOffset() {
+    LeadExporter.Query q = LeadExporter.Query.parse(Map.of("from", "2026-03-01T10:15:00Z"), MOSCOW);
+    assertEquals(OffsetDateTime.parse("2026-03-01T10:15:00Z").toInstant().toEpochMilli(), q.fromMillis());
+  }
+
+  @Test
+  void queryRejectsMalformedParameters() {
+    assertThrows(IllegalArgumentException.class, () -> LeadExporter.Query.parse(Map.of("format", "xlsx"), MOSCOW));
+    assertThrows(IllegalArgumentException.class, () -> LeadExporter.Query.parse(Map.of("from", "01.03.2026"), MOSCOW));
+    assertThrows(IllegalArgumentException.class, () -> LeadExporter.Query.parse(Map.of("to", "2026-03-01T10:15"), MOSCOW));
+    assertThrows(IllegalArgumentException.class, () -> LeadExporter.Query.parse(Map.of("after", "abc"), MOSCOW));
+  }
+
+  private static String csv(String value) throws IOException {
+    StringWriter w = new StringWriter();
+    LeadExporter.writeCsvField(w, value);
+    return w.toString();
+  }
+}
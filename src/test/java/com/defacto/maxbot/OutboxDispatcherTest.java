@@ -0,0 +1,126 @@
+package com.defacto.maxbot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxDispatcherTest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @TempDir
+  File dir;
+
+  private final List<CompletableFuture<Void>> sends = new CopyOnWriteArrayList<>();
+  private volatile RuntimeException failure;
+  private SqliteDatabase db;
+  private GroupCommitWriter writer;
+  private OutboundQueue outbound;
+  private OutboxDispatcher outbox;
+
+  @BeforeEach
+  void open() {
+    db = new SqliteDatabase(new File(dir, "outbox.db").getPath(), 1);
+    writer = new GroupCommitWriter(db, 1, 64);
+    MaxApiClient client = new MaxApiClient("http://127.0.0.1:9", "test", MAPPER) {
+      @Override
+      public CompletableFuture<Void> sendMessageAsync(long userId, byte[] jsonBody) {
+        CompletableFuture<Void> send = new CompletableFuture<>();
+        if (failure != null) {
+          send.completeExceptionally(failure);
+        }
+        sends.add(send);
+        return send;
+      }
+    };
+    outbound = new OutboundQueue(client, 1_000, 1_000, 0, 1, 64);
+  }
+
+  @AfterEach
+  void close() {
+    for (CompletableFuture<Void> send : sends) {
+      send.complete(null);
+    }
+    if (outbox != null) {
+      outbox.close();
+    }
+    outbound.close();
+    writer.close();
+    db.close();
+  }
+
+  @Test
+  void slowSendIsNotResentWhileInFlight() throws Exception {
+    saveLead();
+    outbox = new OutboxDispatcher(db, writer, outbound, 10, 10, 3);
+    await(() -> sends.size() == 1);
+    Thread.sleep(300);
+    assertEquals(1, sends.size());
+    assertEquals(1, outbox.inFlight());
+
+    sends.get(0).complete(null);
+    await(() -> outbox.pending() == 0);
+    assertEquals(1, outbox.delivered());
+    assertEquals(0, outbox.inFlight());
+    assertEquals(1, sends.size());
+  }
+
+  @Test
+  void failedSendIsRescheduledWithBackoff() throws Exception {
+    failure = new IllegalStateException("rejected");
+    saveLead();
+    outbox = new OutboxDispatcher(db, writer, outbound, 10, 10, 3);
+    await(() -> outbox.failures() == 1 && outbox.inFlight() == 0);
+    Thread.sleep(300);
+    assertEquals(1, sends.size());
+    assertEquals(1, outbox.pending());
+    assertEquals(1, count("SELECT attempts FROM outbox"));
+    assertTrue(count("SELECT next_attempt_at FROM outbox") > System.currentTimeMillis());
+  }
+
+  @Test
+  void notificationIsParkedAfterMaxAttempts() throws Exception {
+    failure = new IllegalStateException("rejected");
+    saveLead();
+    outbox = new OutboxDispatcher(db, writer, outbound, 10, 10, 1);
+    await(() -> outbox.parked() == 1 && outbox.inFlight() == 0);
+    assertEquals(0, outbox.pending());
+    assertEquals(1, count("SELECT COUNT(*) FROM outbox_dead_letter WHERE attempts = 1"));
+    assertEquals(1, sends.size());
+  }
+
+  private void saveLead() {
+    Conversation c = new Conversation(42);
+    c.topic = "topic";
+    new LeadStore(db, writer, MAPPER).saveLead(c, 1, "{}".getBytes(StandardCharsets.UTF_8));
+  }
+
+  private long count(String sql) throws Exception {
+    return db.read(conn -> {
+      try (ResultSet rs = conn.connection().createStatement().executeQuery(sql)) {
+        return rs.next() ? rs.getLong(1) : -1L;
+      }
+    });
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean() && System.nanoTime() - deadline < 0) {
+      Thread.sleep(10);
+    }
+    assertTrue(condition.getAsBoolean());
+  }
+}
@@ -0,0 +1,81 @@
+package com.defacto.maxbot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpdateDispatcherTest {
+  private final List<Long> handled = new CopyOnWriteArrayList<>();
+  private UpdateDispatcher dispatcher;
+
+  @AfterEach
+  void shutdown() {
+    if (dispatcher != null) {
+      dispatcher.shutdown();
+    }
+  }
+
+  @Test
+  void errorFailsTheUpdateAndKeepsTheWorkerRunning() throws Exception {
+    dispatcher = new UpdateDispatcher(processor(1, new StackOverflowError()), 1, 16);
+    CompletableFuture<Void> failed = dispatcher.dispatch(started(1, 1));
+    CompletableFuture<Void> next = dispatcher.dispatch(started(2, 1));
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+    assertInstanceOf(StackOverflowError.class, e.getCause());
+    next.get(5, TimeUnit.SECONDS);
+    assertEquals(List.of(1L), handled);
+  }
+
+  @Test
+  void exceptionFailsOnlyItsOwnUpdate() throws Exception {
+    dispatcher = new UpdateDispatcher(processor(7, new IllegalStateException("handler failed")), 2, 16);
+    CompletableFuture<Void> all = dispatcher.dispatchAll(List.of(started(7, 1), started(8, 2), started(9, 3)));
+
+    assertThrows(ExecutionException.class, () -> all.get(5, TimeUnit.SECONDS));
+    dispatcher.dispatch(started(10, 4)).get(5, TimeUnit.SECONDS);
+    assertEquals(List.of(2L, 3L, 4L), handled.stream().sorted().toList());
+  }
+
+  @Test
+  void closeDrainsQueuedUpdatesAndRejectsNewOnes() throws Exception {
+    dispatcher = new UpdateDispatcher(processor(0, null), 1, 16);
+    CompletableFuture<Void> all = dispatcher.dispatchAll(List.of(started(1, 1), started(2, 1), started(3, 1)));
+    dispatcher.close();
+
+    assertTrue(all.isDone());
+    all.get();
+    assertEquals(List.of(1L, 1L, 1L), handled);
+    ExecutionException e = assertThrows(ExecutionException.class, () -> dispatcher.dispatch(started(4, 1)).get());
+    assertInstanceOf(IllegalStateException.class, e.getCause());
+  }
+
+  private UpdateProcessor processor(long failingTimestamp, Throwable failure) {
+    return new UpdateProcessor(null, null, null, null, null, null, null, null, null) {
+      @Override
+      public void handleUpdate(Update update) {
+        if (update.timestamp() == failingTimestamp) {
+          if (failure instanceof Error error) {
+            throw error;
+          }
+          throw (RuntimeException) failure;
+        }
+        handled.add(update.userId());
+      }
+    };
+  }
+
+  private static Update started(long timestamp, long userId) {
+    return new Update.BotStarted(timestamp, new Update.User(userId, false));
+  }
+}